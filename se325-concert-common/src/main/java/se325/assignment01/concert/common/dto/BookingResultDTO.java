@@ -0,0 +1,36 @@
+package se325.assignment01.concert.common.dto;
+
+/**
+ * Represents the outcome of one booking request in a batch of booking requests.
+ * status     the HTTP status the booking would have had if it was made on its own, e.g. 201 if it was booked
+ * location   the URI of the booking that was created, if there was one
+ */
+public class BookingResultDTO {
+
+    private int status;
+    private String location;
+
+    public BookingResultDTO() {
+    }
+
+    public BookingResultDTO(int status, String location) {
+        this.status = status;
+        this.location = location;
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    public void setStatus(int status) {
+        this.status = status;
+    }
+
+    public String getLocation() {
+        return location;
+    }
+
+    public void setLocation(String location) {
+        this.location = location;
+    }
+}
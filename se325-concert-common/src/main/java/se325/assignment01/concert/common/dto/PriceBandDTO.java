@@ -0,0 +1,60 @@
+package se325.assignment01.concert.common.dto;
+
+import java.math.BigDecimal;
+
+/**
+ * Represents a price band in the theatre, which covers whole rows.
+ * name       the name of the price band, e.g. "Gold Seating"
+ * price      the price of every seat in the price band
+ * firstRow   the first row in the price band, starting from 0 for row A
+ * numRows    the number of rows in the price band
+ */
+public class PriceBandDTO {
+
+    private String name;
+    private BigDecimal price;
+    private int firstRow;
+    private int numRows;
+
+    public PriceBandDTO() {
+    }
+
+    public PriceBandDTO(String name, BigDecimal price, int firstRow, int numRows) {
+        this.name = name;
+        this.price = price;
+        this.firstRow = firstRow;
+        this.numRows = numRows;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public BigDecimal getPrice() {
+        return price;
+    }
+
+    public void setPrice(BigDecimal price) {
+        this.price = price;
+    }
+
+    public int getFirstRow() {
+        return firstRow;
+    }
+
+    public void setFirstRow(int firstRow) {
+        this.firstRow = firstRow;
+    }
+
+    public int getNumRows() {
+        return numRows;
+    }
+
+    public void setNumRows(int numRows) {
+        this.numRows = numRows;
+    }
+}
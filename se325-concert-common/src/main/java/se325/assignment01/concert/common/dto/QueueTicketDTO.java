@@ -0,0 +1,47 @@
+package se325.assignment01.concert.common.dto;
+
+/**
+ * Represents a place in the waiting room for a concert date which is in high demand.
+ * token      identifies the holder of the place in the queue
+ * position   the number of people ahead in the queue, 0 once admitted
+ * admitted   whether the holder has been let through to book seats
+ */
+public class QueueTicketDTO {
+
+    private String token;
+    private long position;
+    private boolean admitted;
+
+    public QueueTicketDTO() {
+    }
+
+    public QueueTicketDTO(String token, long position, boolean admitted) {
+        this.token = token;
+        this.position = position;
+        this.admitted = admitted;
+    }
+
+    public String getToken() {
+        return token;
+    }
+
+    public void setToken(String token) {
+        this.token = token;
+    }
+
+    public long getPosition() {
+        return position;
+    }
+
+    public void setPosition(long position) {
+        this.position = position;
+    }
+
+    public boolean isAdmitted() {
+        return admitted;
+    }
+
+    public void setAdmitted(boolean admitted) {
+        this.admitted = admitted;
+    }
+}
@@ -0,0 +1,61 @@
+package se325.assignment01.concert.common.dto;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Represents the seats which have changed on a date since a version of the seats the client already has.
+ * version   the version these changes go up to, to send as "since" next time
+ * resync    true if the changes the client needs are no longer kept, in which case it must fetch all the seats again
+ * booked    the labels of the seats which have been booked since
+ * freed     the labels of the seats which have been freed since
+ */
+public class SeatChangesDTO {
+
+    private long version;
+    private boolean resync;
+    private List<String> booked = new ArrayList<>();
+    private List<String> freed = new ArrayList<>();
+
+    public SeatChangesDTO() {
+    }
+
+    public SeatChangesDTO(long version, boolean resync, List<String> booked, List<String> freed) {
+        this.version = version;
+        this.resync = resync;
+        this.booked = booked;
+        this.freed = freed;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public void setVersion(long version) {
+        this.version = version;
+    }
+
+    public boolean isResync() {
+        return resync;
+    }
+
+    public void setResync(boolean resync) {
+        this.resync = resync;
+    }
+
+    public List<String> getBooked() {
+        return booked;
+    }
+
+    public void setBooked(List<String> booked) {
+        this.booked = booked;
+    }
+
+    public List<String> getFreed() {
+        return freed;
+    }
+
+    public void setFreed(List<String> freed) {
+        this.freed = freed;
+    }
+}
@@ -0,0 +1,83 @@
+package se325.assignment01.concert.common.dto;
+
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+import se325.assignment01.concert.common.jackson.LocalDateTimeDeserializer;
+import se325.assignment01.concert.common.jackson.LocalDateTimeSerializer;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Represents seats which are being held for a user while they check out. The hold becomes a booking when it is
+ * confirmed, or the seats are released when it expires.
+ * id           the id of the hold, used to confirm or release it
+ * concertId    the id of the concert
+ * date         the date of the performance
+ * seatLabels   the seats which are held
+ * expiry       when the hold expires if it hasn't been confirmed
+ */
+public class SeatHoldDTO {
+
+    private String id;
+    private long concertId;
+    @JsonSerialize(using = LocalDateTimeSerializer.class)
+    @JsonDeserialize(using = LocalDateTimeDeserializer.class)
+    private LocalDateTime date;
+    private List<String> seatLabels = new ArrayList<>();
+    @JsonSerialize(using = LocalDateTimeSerializer.class)
+    @JsonDeserialize(using = LocalDateTimeDeserializer.class)
+    private LocalDateTime expiry;
+
+    public SeatHoldDTO() {
+    }
+
+    public SeatHoldDTO(String id, long concertId, LocalDateTime date, List<String> seatLabels, LocalDateTime expiry) {
+        this.id = id;
+        this.concertId = concertId;
+        this.date = date;
+        this.seatLabels = seatLabels;
+        this.expiry = expiry;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public long getConcertId() {
+        return concertId;
+    }
+
+    public void setConcertId(long concertId) {
+        this.concertId = concertId;
+    }
+
+    public LocalDateTime getDate() {
+        return date;
+    }
+
+    public void setDate(LocalDateTime date) {
+        this.date = date;
+    }
+
+    public List<String> getSeatLabels() {
+        return seatLabels;
+    }
+
+    public void setSeatLabels(List<String> seatLabels) {
+        this.seatLabels = seatLabels;
+    }
+
+    public LocalDateTime getExpiry() {
+        return expiry;
+    }
+
+    public void setExpiry(LocalDateTime expiry) {
+        this.expiry = expiry;
+    }
+}
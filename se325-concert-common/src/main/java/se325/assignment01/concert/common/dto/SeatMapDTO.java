@@ -0,0 +1,89 @@
+package se325.assignment01.concert.common.dto;
+
+import javax.ws.rs.core.MediaType;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * A compact alternative to a list of SeatDTOs, describing every seat in the theatre on a date.
+ * version       the version of the seats, to ask for the changes since
+ * seatsPerRow   the number of seats in each row
+ * numRows       the number of rows, the first being row A
+ * booked        base64 of a bitset with one bit per seat, in row-major order ("A1" is bit 0, "B1" is bit
+ *               seatsPerRow), where bit i is bit (i % 8) of byte (i / 8) and is set if the seat is booked
+ * priceBands    the price bands, which together cover every row
+ */
+public class SeatMapDTO {
+
+    /**
+     * The media type to ask for in the Accept header to get a SeatMapDTO from GET /seats/{date}.
+     */
+    public static final String MEDIA_TYPE = "application/vnd.concert.seatmap+json";
+    public static final MediaType MEDIA_TYPE_TYPE = MediaType.valueOf(MEDIA_TYPE);
+
+    private long version;
+    private int seatsPerRow;
+    private int numRows;
+    private String booked;
+    private List<PriceBandDTO> priceBands = new ArrayList<>();
+
+    public SeatMapDTO() {
+    }
+
+    public SeatMapDTO(long version, int seatsPerRow, int numRows, String booked, List<PriceBandDTO> priceBands) {
+        this.version = version;
+        this.seatsPerRow = seatsPerRow;
+        this.numRows = numRows;
+        this.booked = booked;
+        this.priceBands = priceBands;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public void setVersion(long version) {
+        this.version = version;
+    }
+
+    public int getSeatsPerRow() {
+        return seatsPerRow;
+    }
+
+    public void setSeatsPerRow(int seatsPerRow) {
+        this.seatsPerRow = seatsPerRow;
+    }
+
+    public int getNumRows() {
+        return numRows;
+    }
+
+    public void setNumRows(int numRows) {
+        this.numRows = numRows;
+    }
+
+    public String getBooked() {
+        return booked;
+    }
+
+    public void setBooked(String booked) {
+        this.booked = booked;
+    }
+
+    public List<PriceBandDTO> getPriceBands() {
+        return priceBands;
+    }
+
+    public void setPriceBands(List<PriceBandDTO> priceBands) {
+        this.priceBands = priceBands;
+    }
+
+    /**
+     * Checks whether the seat at the given row-major index is booked.
+     */
+    public boolean isBooked(int seatIndex) {
+        byte[] bits = Base64.getDecoder().decode(booked);
+        return (bits[seatIndex / 8] & (1 << (seatIndex % 8))) != 0;
+    }
+}
@@ -9,6 +9,7 @@ import java.util.*;
  * bookingId   the id of the booking which is generated when a row is added to a column
  * concertId   the id of the concert which was booked
  * date        the date on which that concert was booked
+ * uuid        the id of the user who made the booking
  * seats       the seats which were booked for that concert on that date
  */
 @Entity
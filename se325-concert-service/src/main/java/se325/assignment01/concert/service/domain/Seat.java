@@ -14,18 +14,27 @@ import java.time.LocalDateTime;
  * date        	the date on which that concert was booked
  * label		the seat label
  * price		the price that it costs to book the seat
+ * version		used for optimistic locking when the seat is booked
+ * <p>
+ * Seats are made in their thousands whenever the database is set up, so
+ * they have a sequence of their own which hands out ids in blocks, rather
+ * than going to the database for each one.
  */
 @Entity
 public class Seat {
 
 	@Id
-	@GeneratedValue
+	@GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "seat_sequence")
+	@SequenceGenerator(name = "seat_sequence", sequenceName = "seat_sequence", allocationSize = 500)
 	private long id;
 	private boolean isBooked;
 	private LocalDateTime date;
 	private String label;
 	private BigDecimal price;
 
+	@Version
+	private long version;
+
 	public Seat() {}
 
 	public Seat(String label, boolean isBooked, LocalDateTime date, BigDecimal price) {
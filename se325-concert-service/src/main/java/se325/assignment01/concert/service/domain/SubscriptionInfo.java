@@ -8,15 +8,21 @@ import javax.ws.rs.container.AsyncResponse;
  * Represents the subscription info.
  * sub      Asynchronous response which contains the 'thread' of the subscribers
  * subInfo  the concert information containing when to notify a subscriber.
+ * owner    the id of the subscriber
+ * id       the id the subscriber gave the subscription so they can come back to it, or null
  */
 public class SubscriptionInfo {
 
     private AsyncResponse sub;
     private ConcertInfoSubscriptionDTO subInfo;
+    private String owner;
+    private String id;
 
-    public SubscriptionInfo(AsyncResponse sub, ConcertInfoSubscriptionDTO subInfo) {
+    public SubscriptionInfo(AsyncResponse sub, ConcertInfoSubscriptionDTO subInfo, String owner, String id) {
         this.sub = sub;
         this.subInfo = subInfo;
+        this.owner = owner;
+        this.id = id;
     }
 
     public AsyncResponse getAsyncResponse() {
@@ -26,4 +32,12 @@ public class SubscriptionInfo {
     public ConcertInfoSubscriptionDTO getSubInfo() {
         return this.subInfo;
     }
+
+    public String getOwner() {
+        return this.owner;
+    }
+
+    public String getId() {
+        return this.id;
+    }
 }
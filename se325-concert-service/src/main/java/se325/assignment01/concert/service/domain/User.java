@@ -4,7 +4,6 @@ import org.apache.commons.lang3.builder.EqualsBuilder;
 import org.apache.commons.lang3.builder.HashCodeBuilder;
 
 import javax.persistence.*;
-import java.util.UUID;
 
 /**
  * Entity class to represent users.
@@ -13,7 +12,6 @@ import java.util.UUID;
  * id           the id of the user
  * username     the user's unique username.
  * password     the user's password.
- * uuid         the unique cookie id
  */
 @Entity
 @Table(name = "USERS")
@@ -31,9 +29,6 @@ public class User {
     @Version
     private long version;
 
-    @Column(unique = true)
-    private UUID uuid;
-
     protected User() {
     }
 
@@ -42,6 +37,10 @@ public class User {
         this.password = password;
     }
 
+    public long getId() {
+        return id;
+    }
+
     public String getUsername() {
         return username;
     }
@@ -50,14 +49,6 @@ public class User {
         return password;
     }
 
-    public UUID getUuid() {
-        return this.uuid;
-    }
-
-    public void setUuid(UUID uuid) {
-        this.uuid = uuid;
-    }
-
 
     @Override
     public boolean equals(Object o) {
@@ -1,9 +1,21 @@
 package se325.assignment01.concert.service.mapper;
 
+import se325.assignment01.concert.common.dto.PriceBandDTO;
 import se325.assignment01.concert.common.dto.SeatDTO;
+import se325.assignment01.concert.common.dto.SeatMapDTO;
 import se325.assignment01.concert.service.domain.Seat;
+import se325.assignment01.concert.service.util.TheatreLayout;
+
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
 
 public class SeatMapper {
+
+    // the price bands are the same on every date, so they are only made once
+    private static final List<PriceBandDTO> PRICE_BANDS = priceBandDtos();
+
 //    String label, boolean isBooked, LocalDateTime date, BigDecimal price
     public static SeatDTO toSeatDto(Seat seat) {
         SeatDTO dtoSeat = new SeatDTO(
@@ -13,4 +25,36 @@ public class SeatMapper {
 
         return dtoSeat;
     }
+
+    /**
+     * makes a compact seat map from the labels of the booked seats on a date,
+     * as of the given version of the seats.
+     */
+    public static SeatMapDTO toSeatMapDto(List<String> bookedLabels, long version) {
+        byte[] bits = new byte[(TheatreLayout.NUM_SEATS_IN_THEATRE + 7) / 8];
+
+        for (String label : bookedLabels) {
+            int index = TheatreLayout.seatIndex(label);
+            bits[index / 8] |= 1 << (index % 8);
+        }
+
+        return new SeatMapDTO(
+                version,
+                TheatreLayout.NUM_SEATS_PER_ROW,
+                TheatreLayout.NUM_ROWS,
+                Base64.getEncoder().encodeToString(bits),
+                PRICE_BANDS
+        );
+    }
+
+    private static List<PriceBandDTO> priceBandDtos() {
+        List<PriceBandDTO> priceBands = new ArrayList<>();
+
+        for (int i = 0; i < TheatreLayout.PRICE_BANDS.length; i++) {
+            TheatreLayout.PriceBand band = TheatreLayout.PRICE_BANDS[i];
+            priceBands.add(new PriceBandDTO(band.name, band.price, TheatreLayout.firstRowOf(i), band.numRows));
+        }
+
+        return Collections.unmodifiableList(priceBands);
+    }
 }
@@ -0,0 +1,119 @@
+package se325.assignment01.concert.service.services;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se325.assignment01.concert.service.domain.Concert;
+import se325.assignment01.concert.service.util.ConcertDateKey;
+
+import javax.persistence.EntityManager;
+import java.time.LocalDateTime;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Singleton class that counts the free seats for every concert date, so that nothing needs to count the Seat table
+ * when a booking is made. The counters are rebuilt from the database at start-up, and then changed by every booking
+ * and cancellation as it happens.
+ */
+public class AvailabilityCounters {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AvailabilityCounters.class);
+
+    private static final AvailabilityCounters INSTANCE = new AvailabilityCounters();
+
+    private final ConcurrentHashMap<ConcertDateKey, AtomicInteger> freeSeats = new ConcurrentHashMap<>();
+
+    protected AvailabilityCounters() {
+    }
+
+    public static AvailabilityCounters instance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Gets the number of free seats for a concert date.
+     *
+     * @param concertId the id of the concert
+     * @param date      the date of the performance
+     * @return the number of free seats, or -1 if the concert doesn't run on that date
+     */
+    public int freeSeats(long concertId, LocalDateTime date) {
+        AtomicInteger counter = freeSeats.get(new ConcertDateKey(concertId, date));
+        return counter == null ? -1 : counter.get();
+    }
+
+    /**
+     * Records that seats have been booked.
+     *
+     * @param concertId the id of the concert
+     * @param date      the date of the performance
+     * @param count     the number of seats booked
+     * @return the number of free seats left
+     */
+    public int booked(long concertId, LocalDateTime date, int count) {
+        return adjust(concertId, date, -count);
+    }
+
+    /**
+     * Records that seats have been given back.
+     *
+     * @param concertId the id of the concert
+     * @param date      the date of the performance
+     * @param count     the number of seats released
+     * @return the number of free seats now
+     */
+    public int released(long concertId, LocalDateTime date, int count) {
+        return adjust(concertId, date, count);
+    }
+
+    /**
+     * Throws away the counters and counts the free seats of every concert date again. Must be called at start-up and
+     * whenever the database is reset.
+     */
+    public void rebuild() {
+
+        EntityManager em = PersistenceManager.instance().createReadOnlyEntityManager();
+
+        try {
+            em.getTransaction().begin();
+
+            List<Concert> concerts = em.createQuery("select c from Concert c", Concert.class).getResultList();
+
+            // seats belong to a date rather than a concert, so count them once per date
+            List<Object[]> freeByDate = em.createQuery("select s.date, count(s) from Seat s where s.isBooked = false group by s.date", Object[].class)
+                    .getResultList();
+
+            Map<LocalDateTime, Integer> freeSeatsOnDate = new HashMap<>();
+            for (Object[] row : freeByDate) {
+                freeSeatsOnDate.put((LocalDateTime) row[0], ((Long) row[1]).intValue());
+            }
+
+            Map<ConcertDateKey, AtomicInteger> counters = new HashMap<>();
+            for (Concert concert : concerts) {
+                for (LocalDateTime date : concert.getDates()) {
+                    counters.put(new ConcertDateKey(concert.getId(), date), new AtomicInteger(freeSeatsOnDate.getOrDefault(date, 0)));
+                }
+            }
+
+            em.getTransaction().commit();
+
+            freeSeats.clear();
+            freeSeats.putAll(counters);
+
+            LOGGER.info("Counted the free seats for " + counters.size() + " concert dates");
+        } finally {
+            if (em.getTransaction().isActive()) {
+                em.getTransaction().rollback();
+            }
+            em.close();
+        }
+    }
+
+    private int adjust(long concertId, LocalDateTime date, int delta) {
+        AtomicInteger counter = freeSeats.get(new ConcertDateKey(concertId, date));
+        return counter == null ? -1 : counter.addAndGet(delta);
+    }
+}
@@ -0,0 +1,285 @@
+package se325.assignment01.concert.service.services;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se325.assignment01.concert.service.domain.Booking;
+import se325.assignment01.concert.service.util.ConcertDateKey;
+
+import javax.persistence.EntityManager;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Response;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Writes bookings to the database in groups, so that many bookings arriving at once share one transaction instead of
+ * each opening their own. Bookings are queued per concert date, and a single writer per concert date drains its queue
+ * in batches of up to a maximum size, waiting up to a maximum time for a batch to fill.
+ * <p>
+ * Bookings reach the pipeline with their seats already claimed in the {@link SeatInventory}, so the winners and
+ * losers have been decided in memory before anything is queued. A booking which the database still turns away is
+ * failed on its own, without affecting the rest of its batch. If a batch fails for any other reason, its bookings are
+ * written one at a time instead, and every booking in a batch is always answered one way or another.
+ */
+public class BookingPipeline {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(BookingPipeline.class);
+
+    private final PersistenceManager persistenceManager;
+    private final BookingWriter bookingWriter;
+    private final int maxBatchSize;
+    private final long maxWaitNanos;
+    private final long timeoutMillis;
+
+    private final ConcurrentHashMap<ConcertDateKey, Lane> lanes = new ConcurrentHashMap<>();
+    private final ExecutorService writers = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "booking-pipeline");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public BookingPipeline(PersistenceManager persistenceManager, BookingWriter bookingWriter, int maxBatchSize, long maxWaitMillis,
+                           long timeoutMillis) {
+        this.persistenceManager = persistenceManager;
+        this.bookingWriter = bookingWriter;
+        this.maxBatchSize = maxBatchSize;
+        this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Queues the booking and waits for the batch it ends up in to be committed. Behaves the same as
+     * {@link BookingWriter#write(long, LocalDateTime, List, String)}, except that a 503 is thrown if the booking isn't
+     * committed within the timeout.
+     *
+     * @param concertId the id of the concert
+     * @param date      the date of the performance
+     * @param labels    the labels of the seats to book
+     * @param uuid      identifies the user making the booking
+     * @return the booking which was created
+     */
+    public Booking write(long concertId, LocalDateTime date, List<String> labels, String uuid) {
+
+        Request request = new Request(concertId, date, labels, uuid);
+        Lane lane = lanes.computeIfAbsent(new ConcertDateKey(concertId, date), key -> new Lane());
+
+        lane.queue.add(request);
+
+        // start a writer for this concert date if there isn't one running already
+        if (lane.writing.compareAndSet(false, true)) {
+            writers.execute(() -> drain(lane));
+        }
+
+        try {
+            return request.result.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            LOGGER.info("Gave up waiting for a booking to be committed");
+            return giveUp(request);
+        } catch (ExecutionException e) {
+            throw unwrap(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return giveUp(request);
+        }
+    }
+
+    /**
+     * stops waiting for a booking and throws a 503. The writer skips the booking if it hasn't got to it yet, and
+     * cancels it if it is already being written. If the writer has just answered, though, its answer stands.
+     */
+    private static Booking giveUp(Request request) {
+        if (request.result.completeExceptionally(new WebApplicationException(Response.Status.SERVICE_UNAVAILABLE))) {
+            throw new WebApplicationException(Response.Status.SERVICE_UNAVAILABLE);
+        }
+
+        try {
+            return request.result.join();
+        } catch (CompletionException e) {
+            throw unwrap(e.getCause());
+        }
+    }
+
+    private static RuntimeException unwrap(Throwable cause) {
+        if (cause instanceof RuntimeException) {
+            return (RuntimeException) cause;
+        }
+        return new IllegalStateException(cause);
+    }
+
+    private void drain(Lane lane) {
+        while (true) {
+            List<Request> batch = nextBatch(lane.queue);
+
+            if (!batch.isEmpty()) {
+                commit(batch);
+                continue;
+            }
+
+            // stop writing, unless something was queued after the last batch was taken
+            lane.writing.set(false);
+            if (lane.queue.isEmpty() || !lane.writing.compareAndSet(false, true)) {
+                return;
+            }
+        }
+    }
+
+    private List<Request> nextBatch(LinkedBlockingQueue<Request> queue) {
+        List<Request> batch = new ArrayList<>();
+        queue.drainTo(batch, maxBatchSize);
+
+        if (batch.isEmpty()) {
+            return batch;
+        }
+
+        // give the batch a little while to fill up
+        long deadline = System.nanoTime() + maxWaitNanos;
+
+        try {
+            while (batch.size() < maxBatchSize) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    break;
+                }
+
+                Request request = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                if (request == null) {
+                    break;
+                }
+
+                batch.add(request);
+                queue.drainTo(batch, maxBatchSize - batch.size());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        return batch;
+    }
+
+    private void commit(List<Request> batch) {
+
+        List<Request> written = new ArrayList<>();
+        EntityManager em = null;
+
+        try {
+            em = persistenceManager.createEntityManager();
+            em.getTransaction().begin();
+
+            for (Request request : batch) {
+
+                // the caller has given up waiting
+                if (request.result.isDone()) {
+                    continue;
+                }
+
+                try {
+                    request.booking = bookingWriter.bookSeats(em, request.concertId, request.date, request.labels, request.uuid);
+                    written.add(request);
+                } catch (WebApplicationException e) {
+                    request.result.completeExceptionally(e);
+                } catch (RuntimeException e) {
+                    // the transaction can't be trusted after this, so the rest of the batch is written one at a time
+                    request.result.completeExceptionally(e);
+                    throw e;
+                }
+            }
+
+            em.getTransaction().commit();
+
+            LOGGER.info("Committed " + written.size() + " bookings in one transaction");
+
+            for (Request request : written) {
+                completeWritten(request, request.booking);
+            }
+
+        } catch (RuntimeException e) {
+
+            if (em != null && em.getTransaction().isActive()) {
+                em.getTransaction().rollback();
+            }
+
+            // one bad booking shouldn't sink the rest of the batch, so write them one at a time instead
+            LOGGER.info("Batch of " + batch.size() + " bookings failed, writing the rest one at a time");
+
+            for (Request request : batch) {
+                if (request.result.isDone()) {
+                    continue;
+                }
+
+                try {
+                    completeWritten(request, bookingWriter.write(request.concertId, request.date, request.labels, request.uuid));
+                } catch (RuntimeException writeFailure) {
+                    request.result.completeExceptionally(writeFailure);
+                }
+            }
+
+        } finally {
+            // nothing is left waiting, whatever went wrong
+            for (Request request : batch) {
+                request.result.completeExceptionally(new WebApplicationException(Response.Status.SERVICE_UNAVAILABLE));
+            }
+
+            if (em != null) {
+                if (em.getTransaction().isActive()) {
+                    em.getTransaction().rollback();
+                }
+                em.close();
+            }
+        }
+    }
+
+    /**
+     * hands a committed booking to the request it was made for. If the
+     * caller has already given up waiting for it, they have been told that
+     * it failed, so the booking is cancelled to match.
+     */
+    private void completeWritten(Request request, Booking booking) {
+        if (request.result.complete(booking)) {
+            return;
+        }
+
+        try {
+            bookingWriter.cancel(booking.getBookingId(), request.uuid);
+        } catch (RuntimeException e) {
+            LOGGER.info("Couldn't cancel booking " + booking.getBookingId() + " after its caller gave up: " + e.getMessage());
+        }
+    }
+
+    /**
+     * The queue of bookings for one concert date.
+     */
+    private static class Lane {
+        private final LinkedBlockingQueue<Request> queue = new LinkedBlockingQueue<>();
+        private final AtomicBoolean writing = new AtomicBoolean(false);
+    }
+
+    /**
+     * A booking which is waiting in the pipeline.
+     */
+    private static class Request {
+        private final long concertId;
+        private final LocalDateTime date;
+        private final List<String> labels;
+        private final String uuid;
+        private final CompletableFuture<Booking> result = new CompletableFuture<>();
+        private Booking booking;
+
+        private Request(long concertId, LocalDateTime date, List<String> labels, String uuid) {
+            this.concertId = concertId;
+            this.date = date;
+            this.labels = labels;
+            this.uuid = uuid;
+        }
+    }
+}
@@ -0,0 +1,271 @@
+package se325.assignment01.concert.service.services;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se325.assignment01.concert.common.dto.BookingRequestDTO;
+import se325.assignment01.concert.service.domain.Booking;
+import se325.assignment01.concert.service.domain.Seat;
+
+import javax.persistence.EntityManager;
+import javax.persistence.LockModeType;
+import javax.persistence.OptimisticLockException;
+import javax.persistence.TypedQuery;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Response;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Writes bookings to the database. The seats for a booking are either locked while they are booked, or booked
+ * without locks and checked against their version when the transaction commits, depending on the {@link Mode}.
+ * <p>
+ * Bookings written in a transaction of their own get their own EntityManager rather than the request's, as they are
+ * also written by the {@link BookingPipeline}'s threads, which aren't handling a request, and an optimistic retry
+ * needs a persistence context that the failed attempt hasn't left in a bad state.
+ */
+public class BookingWriter {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(BookingWriter.class);
+
+    /**
+     * PESSIMISTIC  the requested seats are read with a PESSIMISTIC_WRITE lock, so competing bookings wait on the
+     *              database for each other.
+     * OPTIMISTIC   the requested seats are read without locks. A competing booking that commits first bumps the seat
+     *              versions, and the loser is retried against fresh data a bounded number of times.
+     */
+    public enum Mode {
+        PESSIMISTIC, OPTIMISTIC
+    }
+
+    private final PersistenceManager persistenceManager;
+    private final Mode mode;
+    private final int maxRetries;
+
+    public BookingWriter(PersistenceManager persistenceManager, Mode mode, int maxRetries) {
+        this.persistenceManager = persistenceManager;
+        this.mode = mode;
+        this.maxRetries = maxRetries;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * Books the given seats in a transaction of its own. If any of the seats are already booked, then nothing is
+     * booked and a 403 is thrown.
+     *
+     * @param concertId the id of the concert
+     * @param date      the date of the performance
+     * @param labels    the labels of the seats to book
+     * @param uuid      identifies the user making the booking
+     * @return the booking which was created
+     */
+    public Booking write(long concertId, LocalDateTime date, List<String> labels, String uuid) {
+
+        for (int attempt = 0; ; attempt++) {
+
+            EntityManager em = persistenceManager.createEntityManager();
+
+            try {
+                em.getTransaction().begin();
+
+                Booking booking = bookSeats(em, concertId, date, labels, uuid);
+
+                em.getTransaction().commit();
+
+                return booking;
+
+            } catch (RuntimeException e) {
+
+                // someone else booked one of the seats first, so try again with the new versions of the seats
+                if (!isOptimisticLockFailure(e)) {
+                    throw e;
+                }
+
+                if (attempt >= maxRetries) {
+                    LOGGER.info("Giving up on the booking after " + (attempt + 1) + " version conflicts");
+                    throw new WebApplicationException(Response.Status.FORBIDDEN);
+                }
+
+                LOGGER.info("Version conflict while booking, retrying");
+
+            } finally {
+                if (em.getTransaction().isActive()) {
+                    em.getTransaction().rollback();
+                }
+                em.close();
+            }
+        }
+    }
+
+    /**
+     * Cancels a booking in a transaction of its own, deleting the booking and marking its seats as free again. The
+     * booking is locked while it is cancelled, so that it can only be cancelled once.
+     *
+     * @param bookingId the id of the booking
+     * @param uuid      identifies the user cancelling the booking, a 403 is thrown if they didn't make it
+     * @return a detached copy of the booking as it was before it was cancelled, or a 404 if there isn't one
+     */
+    public Booking cancel(long bookingId, String uuid) {
+
+        EntityManager em = persistenceManager.createEntityManager();
+
+        try {
+            em.getTransaction().begin();
+
+            Booking booking = em.find(Booking.class, bookingId, LockModeType.PESSIMISTIC_WRITE);
+
+            if (booking == null) {
+                throw new WebApplicationException(Response.Status.NOT_FOUND);
+            }
+
+            if (!booking.getUuid().equals(uuid)) {
+                throw new WebApplicationException(Response.Status.FORBIDDEN);
+            }
+
+            Set<Seat> seats = new HashSet<>(booking.getSeats());
+
+            for (Seat s : seats) {
+                s.setBooked(false);
+            }
+
+            // the seats belong to the theatre rather than the booking, so they mustn't be removed along with it
+            booking.getSeats().clear();
+            em.remove(booking);
+
+            em.getTransaction().commit();
+
+            LOGGER.info("Cancelled booking " + bookingId + " of " + seats.size() + " seats");
+
+            return new Booking(booking.getConcertId(), booking.getDate(), seats);
+
+        } finally {
+            if (em.getTransaction().isActive()) {
+                em.getTransaction().rollback();
+            }
+            em.close();
+        }
+    }
+
+    /**
+     * Books the given seats inside the caller's transaction. If any of the seats are already booked, then a 403 is
+     * thrown and the caller must roll back.
+     *
+     * @param em        the entity manager, with an active transaction
+     * @param concertId the id of the concert
+     * @param date      the date of the performance
+     * @param labels    the labels of the seats to book
+     * @param uuid      identifies the user making the booking
+     * @return the booking which was persisted
+     */
+    public Booking bookSeats(EntityManager em, long concertId, LocalDateTime date, List<String> labels, String uuid) {
+
+        TypedQuery<Seat> seatQuery = em.createQuery("select s from Seat s where s.label in :label and s.date = :date and s.isBooked = false", Seat.class);
+        seatQuery.setParameter("label", labels);
+        seatQuery.setParameter("date", date);
+        if (mode == Mode.PESSIMISTIC) {
+            seatQuery.setLockMode(LockModeType.PESSIMISTIC_WRITE);
+        }
+        List<Seat> freeRequestedSeats = seatQuery.getResultList();
+
+        LOGGER.info("Number of free seats: " + freeRequestedSeats.size());
+
+        // check if there were any booked seats
+        if (freeRequestedSeats.size() != labels.size()) {
+            throw new WebApplicationException(Response.Status.FORBIDDEN);
+        }
+
+        Set<Seat> seatsSet = new HashSet<>();
+
+        // iterate through the free seats and set them to booked, the version of each seat is checked on flush
+        for (Seat s : freeRequestedSeats) {
+            s.setBooked(true);
+            seatsSet.add(s);
+        }
+
+        Booking booking = new Booking(concertId, date, seatsSet);
+        booking.setUuid(uuid);
+
+        em.persist(booking);
+
+        return booking;
+    }
+
+    /**
+     * Books several sets of seats on the same date inside the caller's transaction. The seats for all of the
+     * requests are read with a single query, so they are only locked once. A request whose seats aren't all free is
+     * skipped, and doesn't stop the others from being booked.
+     *
+     * @param em       the entity manager, with an active transaction
+     * @param date     the date of the performance
+     * @param requests the requests to book, all for the given date
+     * @param uuid     identifies the user making the bookings
+     * @return the bookings which were persisted, in the same order as the requests, with null for each request that
+     * couldn't be booked
+     */
+    public List<Booking> bookSeatsOnDate(EntityManager em, LocalDateTime date, List<BookingRequestDTO> requests, String uuid) {
+
+        Set<String> allLabels = new HashSet<>();
+        for (BookingRequestDTO request : requests) {
+            allLabels.addAll(request.getSeatLabels());
+        }
+
+        TypedQuery<Seat> seatQuery = em.createQuery("select s from Seat s where s.label in :label and s.date = :date and s.isBooked = false", Seat.class);
+        seatQuery.setParameter("label", allLabels);
+        seatQuery.setParameter("date", date);
+        if (mode == Mode.PESSIMISTIC) {
+            seatQuery.setLockMode(LockModeType.PESSIMISTIC_WRITE);
+        }
+
+        Map<String, Seat> freeSeats = new HashMap<>();
+        for (Seat s : seatQuery.getResultList()) {
+            freeSeats.put(s.getLabel(), s);
+        }
+
+        List<Booking> bookings = new ArrayList<>();
+
+        for (BookingRequestDTO request : requests) {
+
+            Set<Seat> seatsSet = new HashSet<>();
+            for (String label : request.getSeatLabels()) {
+                Seat seat = freeSeats.get(label);
+                if (seat != null && !seat.isBooked()) {
+                    seatsSet.add(seat);
+                }
+            }
+
+            // skip the request if any of its seats are booked, including by an earlier request in this batch
+            if (seatsSet.size() != request.getSeatLabels().size()) {
+                bookings.add(null);
+                continue;
+            }
+
+            for (Seat s : seatsSet) {
+                s.setBooked(true);
+            }
+
+            Booking booking = new Booking(request.getConcertId(), date, seatsSet);
+            booking.setUuid(uuid);
+
+            em.persist(booking);
+            bookings.add(booking);
+        }
+
+        return bookings;
+    }
+
+    private static boolean isOptimisticLockFailure(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof OptimisticLockException) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,201 @@
+package se325.assignment01.concert.service.services;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se325.assignment01.concert.common.dto.ConcertDTO;
+import se325.assignment01.concert.common.dto.ConcertSummaryDTO;
+import se325.assignment01.concert.common.dto.PerformerDTO;
+import se325.assignment01.concert.service.domain.Concert;
+import se325.assignment01.concert.service.domain.Performer;
+import se325.assignment01.concert.service.mapper.ConcertMapper;
+import se325.assignment01.concert.service.mapper.PerformerMapper;
+
+import javax.persistence.EntityManager;
+import javax.ws.rs.core.EntityTag;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Singleton class that keeps the concerts and performers in memory, already encoded as JSON, both plain and gzipped.
+ * The catalog hardly ever changes, so it is read from the database and encoded once per catalog version rather than
+ * on every request, and each request only has to copy bytes out.
+ * <p>
+ * Every change to the catalog must call {@link #invalidate()}, which moves on to a new version. Each version gives
+ * out its own strong ETags, so a client that already has the current version can be answered with a 304 from the
+ * version number alone.
+ */
+public class CatalogCache {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CatalogCache.class);
+
+    private static final CatalogCache INSTANCE = new CatalogCache();
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    // starts from the time so that ETags given out before a restart aren't mistaken for current ones
+    private final AtomicLong version = new AtomicLong(System.currentTimeMillis());
+
+    private volatile Catalog catalog;
+
+    protected CatalogCache() {
+    }
+
+    public static CatalogCache instance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Gets the ETag of a resource in the current version of the catalog, without loading anything.
+     *
+     * @param resource names the resource, e.g. "concerts" or "performer-2"
+     * @param gzipped  whether it is the gzipped encoding of the resource, which has a different ETag to the plain one
+     */
+    public EntityTag etag(String resource, boolean gzipped) {
+        return etag(resource, gzipped, version.get());
+    }
+
+    /**
+     * Gets the current version of the catalog, loading it from the database if it has changed since it was last used.
+     */
+    public Catalog get() {
+        Catalog current = catalog;
+        if (current != null && current.version == version.get()) {
+            return current;
+        }
+
+        synchronized (this) {
+            long wanted = version.get();
+            if (catalog == null || catalog.version != wanted) {
+                catalog = load(wanted);
+            }
+            return catalog;
+        }
+    }
+
+    /**
+     * Moves on to a new version of the catalog. Must be called whenever concerts or performers are changed, and
+     * whenever the database is reset.
+     */
+    public void invalidate() {
+        version.incrementAndGet();
+    }
+
+    private Catalog load(long version) {
+
+        EntityManager em = PersistenceManager.instance().createReadOnlyEntityManager();
+
+        try {
+            em.getTransaction().begin();
+
+            List<Concert> concerts = em.createQuery("select c from Concert c", Concert.class).getResultList();
+            List<Performer> performers = em.createQuery("select p from Performer p", Performer.class).getResultList();
+
+            Catalog loaded = new Catalog(version, concerts, performers);
+
+            em.getTransaction().commit();
+
+            LOGGER.info("Loaded version " + version + " of the catalog with " + concerts.size() + " concerts and "
+                    + performers.size() + " performers");
+
+            return loaded;
+        } finally {
+            if (em.getTransaction().isActive()) {
+                em.getTransaction().rollback();
+            }
+            em.close();
+        }
+    }
+
+    private static EntityTag etag(String resource, boolean gzipped, long version) {
+        return new EntityTag(resource + "-" + version + (gzipped ? "-gzip" : ""));
+    }
+
+    /**
+     * One version of the catalog, with every resource in it encoded ahead of time. Nothing in it is changed after it
+     * has been loaded.
+     */
+    public static class Catalog {
+
+        private final long version;
+        private final Map<String, Snapshot> snapshots = new HashMap<>();
+
+        private Catalog(long version, List<Concert> concerts, List<Performer> performers) {
+            this.version = version;
+
+            List<ConcertDTO> dtoConcerts = new ArrayList<>();
+            List<ConcertSummaryDTO> concertSummaries = new ArrayList<>();
+            for (Concert c : concerts) {
+                ConcertDTO dtoConcert = ConcertMapper.toConcertDto(c);
+                snapshots.put("concert-" + c.getId(), new Snapshot(dtoConcert));
+                dtoConcerts.add(dtoConcert);
+                concertSummaries.add(ConcertMapper.toConcertSummaryDto(c));
+            }
+            snapshots.put("concerts", new Snapshot(dtoConcerts));
+
+            // there are no summaries to find if there are no concerts
+            if (!concertSummaries.isEmpty()) {
+                snapshots.put("summaries", new Snapshot(concertSummaries));
+            }
+
+            List<PerformerDTO> dtoPerformers = new ArrayList<>();
+            for (Performer p : performers) {
+                PerformerDTO dtoPerformer = PerformerMapper.toPerformerDTO(p);
+                snapshots.put("performer-" + p.getId(), new Snapshot(dtoPerformer));
+                dtoPerformers.add(dtoPerformer);
+            }
+            snapshots.put("performers", new Snapshot(dtoPerformers));
+        }
+
+        public EntityTag etag(String resource, boolean gzipped) {
+            return CatalogCache.etag(resource, gzipped, version);
+        }
+
+        /**
+         * @param resource names the resource, e.g. "concerts" or "performer-2"
+         * @return the encoded resource, or null if there is no such resource
+         */
+        public Snapshot get(String resource) {
+            return snapshots.get(resource);
+        }
+    }
+
+    /**
+     * A resource encoded as JSON, and the same JSON gzipped.
+     */
+    public static class Snapshot {
+
+        private final byte[] json;
+        private final byte[] gzipped;
+
+        private Snapshot(Object dto) {
+            try {
+                json = MAPPER.writeValueAsBytes(dto);
+
+                ByteArrayOutputStream out = new ByteArrayOutputStream(json.length / 2);
+                try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+                    gzip.write(json);
+                }
+                gzipped = out.toByteArray();
+
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        public byte[] getJson() {
+            return json;
+        }
+
+        public byte[] getGzipped() {
+            return gzipped;
+        }
+    }
+}
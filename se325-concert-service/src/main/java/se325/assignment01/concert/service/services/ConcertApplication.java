@@ -21,9 +21,11 @@ public class ConcertApplication extends Application {
     public ConcertApplication() {
         classes.add(TestResource.class);
         classes.add(ConcertResource.class);
+        classes.add(MetricsResource.class);
         singletons.add(PersistenceManager.instance());
 
         ConcertUtils.initConcerts();
+        AvailabilityCounters.instance().rebuild();
     }
 
     @Override
@@ -7,9 +7,10 @@ import se325.assignment01.concert.common.types.BookingStatus;
 import se325.assignment01.concert.service.domain.*;
 import se325.assignment01.concert.service.jaxrs.LocalDateTimeParam;
 import se325.assignment01.concert.service.mapper.BookingMapper;
-import se325.assignment01.concert.service.mapper.ConcertMapper;
-import se325.assignment01.concert.service.mapper.PerformerMapper;
 import se325.assignment01.concert.service.mapper.SeatMapper;
+import se325.assignment01.concert.service.util.ConcertDateKey;
+import se325.assignment01.concert.service.util.Config;
+import se325.assignment01.concert.service.util.TheatreLayout;
 
 import javax.persistence.EntityManager;
 import javax.persistence.LockModeType;
@@ -19,12 +20,20 @@ import javax.ws.rs.*;
 import javax.ws.rs.container.AsyncResponse;
 import javax.ws.rs.container.Suspended;
 import javax.ws.rs.core.*;
+import javax.ws.rs.sse.Sse;
+import javax.ws.rs.sse.SseEventSink;
 import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.time.LocalDateTime;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
-
-import static se325.assignment01.concert.service.util.TheatreLayout.NUM_SEATS_IN_THEATRE;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
 
 @Path("/concert-service")
 @Produces(MediaType.APPLICATION_JSON)
@@ -44,15 +53,44 @@ public class ConcertResource {
      * Maybe it would be better to use lazy loading for things like the concerts, performers, bookings, seats etc.
      * This will make it more efficient as it will only load the seats etc when the concerts are clicked on.
      *
-     * In future it would be good to try using optimistic
+     * Bookings claim their seats in the in-memory SeatInventory first, so only one booking ever writes a given seat.
+     * The write itself locks the seat rows by default. Setting -Dconcert.booking.mode=OPTIMISTIC books them without
+     * locks instead: seats are versioned and a booking which loses a version race is retried (see BookingWriter).
+     *
+     * Concerts and performers are served from the CatalogCache instead of the database, already encoded as JSON and
+     * gzip, with an ETag for each version of the catalog, so a client which already has the current version gets a 304.
      */
 
     private static final Logger LOGGER = LoggerFactory.getLogger(ConcertResource.class);
-    private static final ConcurrentHashMap<LocalDateTime, LinkedList<SubscriptionInfo>> subsInfo = new ConcurrentHashMap<>();
 
     private static final String AUTH_COOKIE = "auth";
+    private static final String ADMISSION_COOKIE = "admission";
+    private static final String IDEMPOTENCY_KEY_HEADER = "Idempotency-Key";
+    private static final String IDEMPOTENT_REPLAY_HEADER = "Idempotent-Replayed";
+    private static final String SEAT_VERSION_HEADER = "Seat-Version";
+    private static final String SUBSCRIPTION_ID_PATTERN = "[A-Za-z0-9._~-]{1,64}";
+
+    // how long a retry waits for the original request to finish before giving up
+    private static final int IDEMPOTENT_WAIT_SECONDS = 30;
+
+    // shared by every request, so that bookings from concurrent requests can be committed together
+    private static final BookingPipeline bookingPipeline = new BookingPipeline(PersistenceManager.instance(),
+            new BookingWriter(PersistenceManager.instance(), Config.BOOKING_MODE, Config.BOOKING_MAX_RETRIES),
+            Config.BOOKING_BATCH_MAX_SIZE, Config.BOOKING_BATCH_MAX_WAIT_MILLIS, Config.BOOKING_BATCH_TIMEOUT_MILLIS);
 
     PersistenceManager persistenceManager = PersistenceManager.instance();
+    SeatInventory seatInventory = SeatInventory.instance();
+    SeatHolds seatHolds = SeatHolds.instance();
+    AvailabilityCounters availabilityCounters = AvailabilityCounters.instance();
+    WaitingRoom waitingRoom = WaitingRoom.instance();
+    IdempotencyCache idempotencyCache = IdempotencyCache.instance();
+    CatalogCache catalogCache = CatalogCache.instance();
+    SeatChangeLog seatChangeLog = SeatChangeLog.instance();
+    SeatStreams seatStreams = SeatStreams.instance();
+    SubscriptionRegistry subscriptionRegistry = SubscriptionRegistry.instance();
+    NotificationCoalescer notificationCoalescer = NotificationCoalescer.instance();
+    SessionTokens sessionTokens = SessionTokens.instance();
+    BookingWriter bookingWriter = new BookingWriter(persistenceManager, Config.BOOKING_MODE, Config.BOOKING_MAX_RETRIES);
 
     /**
      * - POST    <base-uri>/login
@@ -69,7 +107,7 @@ public class ConcertResource {
         User domainUser = null;
 
         // check if the user exists in the database
-        EntityManager em = persistenceManager.createEntityManager();
+        EntityManager em = persistenceManager.requestEntityManager();
 
         try {
 
@@ -79,7 +117,6 @@ public class ConcertResource {
             TypedQuery<User> userQuery = em.createQuery("select u from User u where u.username = :username and u.password = :password", User.class);
             userQuery.setParameter("username", user.getUsername());
             userQuery.setParameter("password", user.getPassword());
-            userQuery.setLockMode(LockModeType.PESSIMISTIC_READ);
             domainUser = userQuery.getSingleResult();
 
             em.getTransaction().commit();
@@ -89,7 +126,7 @@ public class ConcertResource {
                 throw new WebApplicationException(Response.Status.UNAUTHORIZED);
             }
 
-            NewCookie newCookie = newSession(domainUser, em);
+            NewCookie newCookie = newSession(domainUser);
             LOGGER.info("Generated a new cookie for the new user");
 
             return Response
@@ -100,206 +137,90 @@ public class ConcertResource {
             return Response.status(Response.Status.UNAUTHORIZED).build();
         } finally {
             commitIfActive(em);
-            em.close();
         }
     }
 
     /**
      * - GET    <base-uri>/concerts/summaries
      * Retrieves the Concert summaries. The HTTP response
-     * message has a status code of either 200 or 404, depending on
+     * message has a status code of either 200, 304 or 404, depending
+     * on whether the client already has the current summaries and
      * whether the concert summaries are found.
+     * @param acceptEncoding
+     * @param request
      * @return
      */
     @GET
     @Path("/concerts/summaries")
-    public Response retrieveConcertSummaries() {
-
-        // get all the concerts from the database
-        List<ConcertSummaryDTO> concertSummaries = new ArrayList<>();
-
-        EntityManager em = persistenceManager.createEntityManager();
-
-        try {
-            em.getTransaction().begin();
-
-            // get the concerts
-            TypedQuery<Concert> concertQuery = em.createQuery("select c from Concert c", Concert.class);
-            concertQuery.setLockMode(LockModeType.PESSIMISTIC_READ);
-            List<Concert> concerts = concertQuery.getResultList();
-            LOGGER.info("retrieving the concert summaries");
-
-            // if there are no concerts throw a not found
-            if (concerts.isEmpty()) {
-                throw new WebApplicationException(Response.Status.NOT_FOUND);
-            }
-
-            em.getTransaction().commit();
+    public Response retrieveConcertSummaries(@HeaderParam(HttpHeaders.ACCEPT_ENCODING) String acceptEncoding, @Context Request request) {
+        LOGGER.info("retrieving the concert summaries");
 
-            // iterate through and map concerts to summaries (dto)
-            for (Concert c : concerts) {
-                concertSummaries.add(ConcertMapper.toConcertSummaryDto(c));
-            }
-        } finally {
-            commitIfActive(em);
-            em.close();
-        }
-
-        return Response
-                .ok(concertSummaries)
-                .build();
+        // if there are no concerts the summaries aren't found
+        return fromCatalog(request, acceptEncoding, "summaries");
     }
 
     /**
      * - GET    <base-uri>/concerts/{id}
      * Retrieves a Concert based on its unique id. The HTTP response
-     * message has a status code of either 200 or 404, depending on
-     * whether the specified Concert is found.
+     * message has a status code of either 200, 304 or 404, depending
+     * on whether the client already has the current version of the
+     * Concert and whether the specified Concert is found.
      * @param id
+     * @param acceptEncoding
+     * @param request
      * @return
      */
     @GET
     @Path("/concerts/{id}")
-    public Response retrieveConcert(@PathParam("id") long id) {
-
-        EntityManager em = persistenceManager.createEntityManager();
-        try {
-
-            // start a new transaction
-            em.getTransaction().begin();
-
-            // use the entity manager to retrieve em.find(), delete em.merge() or persist em.persist()
-            Concert concert = em.find(Concert.class, id, LockModeType.PESSIMISTIC_READ);
-
-            // commit the new transaction
-            em.getTransaction().commit();
-
-            if (concert == null) {
-                // Return a HTTP 404 response if the specified Concert isn't found.
-                throw new WebApplicationException(Response.Status.NOT_FOUND);
-            }
-
-            return Response
-                    .ok(ConcertMapper.toConcertDto(concert))
-                    .build();
-        } finally {
-            commitIfActive(em);
-            em.close();
-        }
+    public Response retrieveConcert(@PathParam("id") long id, @HeaderParam(HttpHeaders.ACCEPT_ENCODING) String acceptEncoding, @Context Request request) {
+        return fromCatalog(request, acceptEncoding, "concert-" + id);
     }
 
     /**
      * - GET    <base-uri>/concerts
      * Retrieves all Concerts. The HTTP response
-     * message has a status code of 200.
+     * message has a status code of 200, or 304 if the client
+     * already has the current Concerts.
+     * @param acceptEncoding
+     * @param request
      * @return
      */
     @GET
     @Path("/concerts")
-    public Response retrieveAllConcerts() {
-
-        EntityManager em = persistenceManager.createEntityManager();
-
-        List<ConcertDTO> dtoConcerts = new ArrayList<>();
-
-        // query to get all concerts and put it all in a list of concert dto's
-        try {
-
-            em.getTransaction().begin();
-            TypedQuery<Concert> concertQuery = em.createQuery("select c from Concert c", Concert.class);
-            concertQuery.setLockMode(LockModeType.PESSIMISTIC_READ);
-            List<Concert> concerts = concertQuery.getResultList();
-
-            em.getTransaction().commit();
-
-            for (Concert c : concerts) {
-                dtoConcerts.add(ConcertMapper.toConcertDto(c));
-            }
-
-            return Response
-                    .ok(dtoConcerts)
-                    .build();
-        } finally {
-            commitIfActive(em);
-            em.close();
-        }
+    public Response retrieveAllConcerts(@HeaderParam(HttpHeaders.ACCEPT_ENCODING) String acceptEncoding, @Context Request request) {
+        return fromCatalog(request, acceptEncoding, "concerts");
     }
 
     /**
      * - GET    <base-uri>/performers/{id}
      * Retrieves a Performer based on its unique id. The HTTP response
-     * message has a status code of either 200 or 404, depending on
-     * whether the specified Performer is found.
+     * message has a status code of either 200, 304 or 404, depending
+     * on whether the client already has the current version of the
+     * Performer and whether the specified Performer is found.
      * @param id
+     * @param acceptEncoding
+     * @param request
      * @return
      */
     @GET
     @Path("/performers/{id}")
-    public Response retrievePerformer(@PathParam("id") long id) {
-
-        EntityManager em = persistenceManager.createEntityManager();
-        try {
-
-            // start a new transaction
-            em.getTransaction().begin();
-
-            // use the entity manager to retrieve em.find(), delete em.merge() or persist em.persist()
-            Performer performer = em.find(Performer.class, id, LockModeType.PESSIMISTIC_READ);
-
-            // commit the new transaction
-            em.getTransaction().commit();
-
-            if (performer == null) {
-                // Return a HTTP 404 response if the specified Concert isn't found.
-                throw new WebApplicationException(Response.Status.NOT_FOUND);
-            }
-
-            return Response
-                    .ok(PerformerMapper.toPerformerDTO(performer))
-                    .build();
-        } finally {
-            commitIfActive(em);
-            em.close();
-        }
+    public Response retrievePerformer(@PathParam("id") long id, @HeaderParam(HttpHeaders.ACCEPT_ENCODING) String acceptEncoding, @Context Request request) {
+        return fromCatalog(request, acceptEncoding, "performer-" + id);
     }
 
     /**
      * - GET    <base-uri>/performers
      * Retrieves all Performers. The HTTP response
-     * message has a status code of 200.
+     * message has a status code of 200, or 304 if the client
+     * already has the current Performers.
+     * @param acceptEncoding
+     * @param request
      * @return
      */
     @GET
     @Path("/performers")
-    public Response retrieveAllPerformers() {
-
-        EntityManager em = persistenceManager.createEntityManager();
-
-        List<PerformerDTO> dtoPerformers = new ArrayList<>();
-
-        // query to get all performers and put it all in a list of concert dto's
-        try {
-
-            em.getTransaction().begin();
-            TypedQuery<Performer> performerQuery = em.createQuery("select p from Performer p", Performer.class);
-            performerQuery.setLockMode(LockModeType.PESSIMISTIC_READ);
-            List<Performer> performers = performerQuery.getResultList();
-
-            em.getTransaction().commit();
-
-            for (Performer p : performers) {
-                dtoPerformers.add(PerformerMapper.toPerformerDTO(p));
-            }
-
-            GenericEntity<List<PerformerDTO>> entity = new GenericEntity<List<PerformerDTO>>(dtoPerformers) {};
-
-            return Response
-                    .ok(entity)
-                    .build();
-        } finally {
-            commitIfActive(em);
-            em.close();
-        }
+    public Response retrieveAllPerformers(@HeaderParam(HttpHeaders.ACCEPT_ENCODING) String acceptEncoding, @Context Request request) {
+        return fromCatalog(request, acceptEncoding, "performers");
     }
 
     /**
@@ -314,17 +235,12 @@ public class ConcertResource {
     @Path("/bookings")
     public Response retrieveUserBookings(@CookieParam(AUTH_COOKIE) Cookie cookieId) {
 
-        // check if the user is authenticated
-        if (cookieId == null || cookieId.getValue().equals("")) {
-            throw new WebApplicationException(Response.Status.UNAUTHORIZED);
-        }
-
-        // get the user UUID from the cookie
-        String userUuid = cookieId.getValue();
+        // get the user UUID from their session, if they are authenticated
+        String userUuid = authenticate(cookieId).getOwner();
 
         List<BookingDTO> dtoBookList = new ArrayList<BookingDTO>();
 
-        EntityManager em = persistenceManager.createEntityManager();
+        EntityManager em = persistenceManager.requestEntityManager();
 
         try {
 
@@ -332,7 +248,6 @@ public class ConcertResource {
 
             // get all the bookings
             TypedQuery<Booking> bookingQuery = em.createQuery("select b from Booking b", Booking.class);
-            bookingQuery.setLockMode(LockModeType.PESSIMISTIC_READ);
             List<Booking> bookings = bookingQuery.getResultList();
 
             em.getTransaction().commit();
@@ -354,7 +269,6 @@ public class ConcertResource {
 
         } finally {
             commitIfActive(em);
-            em.close();
         }
     }
 
@@ -371,9 +285,9 @@ public class ConcertResource {
     @Path("/bookings/{id}")
     public Response retrieveBookingById(@PathParam("id") long id, @CookieParam(AUTH_COOKIE) Cookie cookieId) {
 
-        String userUuid = cookieId.getValue();
+        String userUuid = authenticate(cookieId).getOwner();
 
-        EntityManager em = persistenceManager.createEntityManager();
+        EntityManager em = persistenceManager.requestEntityManager();
 
         try {
 
@@ -381,7 +295,7 @@ public class ConcertResource {
 
             em.getTransaction().begin();
 
-            Booking booking = em.find(Booking.class, id, LockModeType.PESSIMISTIC_READ);
+            Booking booking = em.find(Booking.class, id);
 
             em.getTransaction().commit();
 
@@ -409,41 +323,93 @@ public class ConcertResource {
                     .build();
         } finally {
             commitIfActive(em);
-            em.close();
         }
     }
 
+    /**
+     * - DELETE    <base-uri>/bookings/{id}
+     * Cancels a booking, freeing its seats for someone else to book.
+     * The HTTP response message has a status code of either 204, 401,
+     * 403 or 404 depending on whether the user is authenticated, if
+     * the booking belongs to them, or if the booking exists.
+     * @param id
+     * @param cookieId
+     * @return
+     */
+    @DELETE
+    @Path("/bookings/{id}")
+    public Response cancelBooking(@PathParam("id") long id, @CookieParam(AUTH_COOKIE) Cookie cookieId) {
+
+        Booking booking = bookingWriter.cancel(id, authenticate(cookieId).getOwner());
+
+        List<String> seatLabels = booking.getSeats().stream().map(Seat::getLabel).collect(Collectors.toList());
+
+        // the seats are free in the database now, so they can be given back without rescanning the date
+        seatInventory.release(booking.getConcertId(), booking.getDate(), seatLabels);
+        seatChangeLog.record(booking.getDate(), seatLabels, false);
+        int freeSeats = availabilityCounters.released(booking.getConcertId(), booking.getDate(), seatLabels.size());
+
+        LOGGER.info("Number of free seats in total: " + freeSeats);
+
+        checkWithSubscribers(booking.getConcertId(), booking.getDate());
+
+        return Response
+                .noContent()
+                .build();
+    }
+
     /**
      * - POST    <base-uri>/bookings
      * Attempts a booking. The HTTP response
-     * message has a status code of either 201, 400, 401, 403
+     * message has a status code of either 201, 400, 401, 403, 429
      * depending on whether the user is authenticated,
-     * if the concert or date is wrong, or if the number
-     * of seats requested don't exist.
+     * if the concert or date is wrong, if the number
+     * of seats requested don't exist, or if the user
+     * hasn't been let through the waiting room for the date.
+     * If an Idempotency-Key header is sent, then retries with the
+     * same key get the response of the first attempt, marked with
+     * an Idempotent-Replayed header, instead of booking again. A
+     * request which reuses a key for a different booking gets a 422.
      * @param brqDTO
      * @param cookieId
+     * @param admission
+     * @param idempotencyKey
      * @param uriInfo
      * @return
      */
     @POST
     @Path("/bookings")
-    public Response attemptBooking(BookingRequestDTO brqDTO, @CookieParam(AUTH_COOKIE) Cookie cookieId, @Context UriInfo uriInfo) {
+    public Response attemptBooking(BookingRequestDTO brqDTO, @CookieParam(AUTH_COOKIE) Cookie cookieId, @CookieParam(ADMISSION_COOKIE) Cookie admission,
+                                   @HeaderParam(IDEMPOTENCY_KEY_HEADER) String idempotencyKey, @Context UriInfo uriInfo) {
 
         // can book if they are authorised
         LOGGER.info("Checking if the user is authorised");
 
-        // they are not authorised
-        if (cookieId == null || cookieId.getValue().equals("")) {
-            LOGGER.info("User is not authorised");
-            throw new WebApplicationException(Response.Status.UNAUTHORIZED);
+        String userUuid = authenticate(cookieId).getOwner();
+
+        // a retried booking gets the outcome of the original booking instead of being booked again
+        if (idempotencyKey != null && !idempotencyKey.isEmpty()) {
+            return bookIdempotently(userUuid + " " + idempotencyKey, fingerprint(brqDTO),
+                    () -> book(brqDTO, userUuid, admission, uriInfo));
         }
 
+        return book(brqDTO, userUuid, admission, uriInfo);
+    }
+
+    /**
+     * books the seats for an authorised user, see attemptBooking.
+     * @param brqDTO
+     * @param userUuid
+     * @param admission
+     * @param uriInfo
+     * @return
+     */
+    private Response book(BookingRequestDTO brqDTO, String userUuid, Cookie admission, UriInfo uriInfo) {
+
         long concertId = brqDTO.getConcertId();
         LocalDateTime date = brqDTO.getDate();
         List<String> seatLabels = brqDTO.getSeatLabels();
 
-        String userUuid = cookieId.getValue();
-
         // if there are no selected seats.
         if (seatLabels.isEmpty()) {
             throw new WebApplicationException(Response.Status.BAD_REQUEST);
@@ -451,114 +417,367 @@ public class ConcertResource {
 
         // from this point onwards, they are authorised //
 
-        EntityManager em = persistenceManager.createEntityManager();
+        checkAdmission(date, admission);
 
-        try {
+        // if the concert doesn't exist or isn't on that date, return a bad request
+        if (!seatInventory.exists(concertId, date)) {
+            LOGGER.info("couldn't find concert on the date: " + date);
+            throw new WebApplicationException(Response.Status.BAD_REQUEST);
+        }
 
-            em.getTransaction().begin();
+        // claim the seats in memory first so that conflicting bookings are turned away without touching the database
+        SeatInventory.Claim claim = seatInventory.claim(concertId, date, seatLabels);
 
-            // check if the concert id exists
-            Concert concert = em.find(Concert.class, concertId, LockModeType.PESSIMISTIC_READ);
+        if (claim == null) {
+            LOGGER.info("The requested seats have already been claimed");
+            throw new WebApplicationException(Response.Status.FORBIDDEN);
+        }
 
-            em.getTransaction().commit();
+        // from here the seats belong to this booking, so no other booking can be writing to them
+        return completeBooking(claim, concertId, date, seatLabels, userUuid, uriInfo);
+    }
+
+    /**
+     * - POST    <base-uri>/bookings/auto
+     * Books the best available seats next to each other in the same
+     * row, optionally within a price band. The HTTP response message
+     * has a status code of either 201, 400, 401, 403 or 429 depending
+     * on whether the user is authenticated, if the concert, date, number
+     * of seats or price band is wrong, if there isn't a big enough
+     * block of seats left, or if the user hasn't been let through the
+     * waiting room for the date.
+     * @param autoDTO
+     * @param cookieId
+     * @param admission
+     * @param uriInfo
+     * @return
+     */
+    @POST
+    @Path("/bookings/auto")
+    public Response attemptAutoBooking(AutoBookingRequestDTO autoDTO, @CookieParam(AUTH_COOKIE) Cookie cookieId, @CookieParam(ADMISSION_COOKIE) Cookie admission, @Context UriInfo uriInfo) {
 
-            // if the concert doesn't exist, return a bad request
-            if (concert == null) {
-                LOGGER.info("couldn't find concert");
+        String userUuid = authenticate(cookieId).getOwner();
+
+        long concertId = autoDTO.getConcertId();
+        LocalDateTime date = autoDTO.getDate();
+
+        checkAdmission(date, admission);
+
+        // look in every row, unless a price band was asked for
+        int firstRow = 0;
+        int numRows = TheatreLayout.NUM_ROWS;
+
+        if (autoDTO.getPriceBand() != null) {
+            int priceBandIndex = TheatreLayout.priceBandIndex(autoDTO.getPriceBand());
+            if (priceBandIndex < 0) {
                 throw new WebApplicationException(Response.Status.BAD_REQUEST);
             }
+            firstRow = TheatreLayout.firstRowOf(priceBandIndex);
+            numRows = TheatreLayout.PRICE_BANDS[priceBandIndex].numRows;
+        }
+
+        if (autoDTO.getNumSeats() < 1 || autoDTO.getNumSeats() > TheatreLayout.NUM_SEATS_PER_ROW
+                || !seatInventory.exists(concertId, date)) {
+            throw new WebApplicationException(Response.Status.BAD_REQUEST);
+        }
 
-            boolean good = false;
+        SeatInventory.Claim claim = seatInventory.claimBest(concertId, date, autoDTO.getNumSeats(), firstRow, numRows);
 
-            for (LocalDateTime concertDate : concert.getDates()) {
-                // check if the concert date is valid from the booking request
-                if (concertDate.equals(date)) {
-                    good = true;
-                }
+        if (claim == null) {
+            LOGGER.info("There isn't a block of " + autoDTO.getNumSeats() + " seats left");
+            throw new WebApplicationException(Response.Status.FORBIDDEN);
+        }
+
+        return completeBooking(claim, concertId, date, claim.getLabels(), userUuid, uriInfo);
+    }
+
+    /**
+     * - POST    <base-uri>/bookings/batch
+     * Attempts many bookings at once. The HTTP response message has
+     * a status code of either 200, 400 or 401 depending on whether
+     * the user is authenticated or if there are no bookings. The
+     * response contains a result for each booking, with the status
+     * it would have had if it was made on its own. Bookings which
+     * fail don't stop the others from being made, unless atomic is
+     * set, in which case either every booking is made or none are
+     * and the bookings which were held back have a status of 409.
+     * @param brqDTOs
+     * @param atomic
+     * @param cookieId
+     * @param admission
+     * @param uriInfo
+     * @return
+     */
+    @POST
+    @Path("/bookings/batch")
+    public Response attemptBookings(List<BookingRequestDTO> brqDTOs, @QueryParam("atomic") boolean atomic, @CookieParam(AUTH_COOKIE) Cookie cookieId, @CookieParam(ADMISSION_COOKIE) Cookie admission, @Context UriInfo uriInfo) {
+
+        String userUuid = authenticate(cookieId).getOwner();
+
+        if (brqDTOs == null || brqDTOs.isEmpty()) {
+            throw new WebApplicationException(Response.Status.BAD_REQUEST);
+        }
+
+        int numRequests = brqDTOs.size();
+
+        int[] statuses = new int[numRequests];
+        SeatInventory.Claim[] claims = new SeatInventory.Claim[numRequests];
+        Booking[] bookings = new Booking[numRequests];
+
+        // each concert date only has to be looked up once, however many bookings there are for it
+        Map<ConcertDateKey, Boolean> validConcertDates = new HashMap<>();
+
+        // claim the seats for every booking in memory, grouping the claimed bookings by date
+        Map<LocalDateTime, List<Integer>> claimedOnDate = new LinkedHashMap<>();
+        boolean anyFailed = false;
+
+        for (int i = 0; i < numRequests; i++) {
+            BookingRequestDTO brqDTO = brqDTOs.get(i);
+            ConcertDateKey key = new ConcertDateKey(brqDTO.getConcertId(), brqDTO.getDate());
+
+            if (!waitingRoom.isAdmitted(brqDTO.getDate(), admission == null ? null : admission.getValue())) {
+                statuses[i] = Response.Status.TOO_MANY_REQUESTS.getStatusCode();
+                anyFailed = true;
+                continue;
             }
 
-            // if the date is wrong, throw a bad request
-            if (!good) {
-                throw new WebApplicationException(Response.Status.BAD_REQUEST);
+            if (brqDTO.getSeatLabels().isEmpty()
+                    || !validConcertDates.computeIfAbsent(key, k -> seatInventory.exists(k.getConcertId(), k.getDate()))) {
+                statuses[i] = Response.Status.BAD_REQUEST.getStatusCode();
+                anyFailed = true;
+                continue;
             }
 
-            // start a new transaction to book the seats
-            em.getTransaction().begin();
+            claims[i] = seatInventory.claim(brqDTO.getConcertId(), brqDTO.getDate(), brqDTO.getSeatLabels());
 
-            // check if the seats are available
-            TypedQuery<Seat> seatQuery = em.createQuery("select s from Seat s where s.label in :label and s.date = :date and s.isBooked = false", Seat.class);
-            seatQuery.setParameter("label", seatLabels);
-            seatQuery.setParameter("date", date);
-            seatQuery.setLockMode(LockModeType.PESSIMISTIC_WRITE);
-            List<Seat> freeRequestedSeats = seatQuery.getResultList();
+            if (claims[i] == null) {
+                statuses[i] = Response.Status.FORBIDDEN.getStatusCode();
+                anyFailed = true;
+                continue;
+            }
 
-            LOGGER.info("Number of free seats: " + freeRequestedSeats.size());
+            claimedOnDate.computeIfAbsent(brqDTO.getDate(), date -> new ArrayList<>()).add(i);
+        }
 
-            // check if there were any booked seats
-            if (freeRequestedSeats.size() != seatLabels.size()) {
-                throw new WebApplicationException(Response.Status.FORBIDDEN);
-            }
+        if (!(atomic && anyFailed)) {
+
+            // book everything that was claimed in one transaction, reading the seats for each date once
+            EntityManager em = persistenceManager.requestEntityManager();
+            boolean committed = false;
 
-            // from here the seats are free
+            try {
+                em.getTransaction().begin();
+
+                for (Map.Entry<LocalDateTime, List<Integer>> entry : claimedOnDate.entrySet()) {
+                    List<BookingRequestDTO> onDate = new ArrayList<>();
+                    for (int i : entry.getValue()) {
+                        onDate.add(brqDTOs.get(i));
+                    }
+
+                    List<Booking> booked = bookingWriter.bookSeatsOnDate(em, entry.getKey(), onDate, userUuid);
+
+                    for (int j = 0; j < booked.size(); j++) {
+                        int i = entry.getValue().get(j);
+                        bookings[i] = booked.get(j);
+                        if (bookings[i] == null) {
+                            statuses[i] = Response.Status.FORBIDDEN.getStatusCode();
+                            anyFailed = true;
+                        }
+                    }
+                }
+
+                if (!(atomic && anyFailed)) {
+                    em.getTransaction().commit();
+                    committed = true;
+                }
+            } finally {
+                // a commit which fails has already ended the transaction, so whether it is active says nothing
+                if (!committed) {
+                    if (em.getTransaction().isActive()) {
+                        em.getTransaction().rollback();
+                    }
+                    em.clear();
+                    Arrays.fill(bookings, null);
+                }
 
-            Set<Seat> seatsSet = new HashSet<>();
+                // give back the seats of every booking which didn't make it into the database
+                for (int i = 0; i < numRequests; i++) {
+                    if (claims[i] != null && bookings[i] == null) {
+                        claims[i].release();
+                    }
+                }
+            }
+        } else {
+            for (SeatInventory.Claim claim : claims) {
+                if (claim != null) {
+                    claim.release();
+                }
+            }
+        }
 
-            // iterate through the free seats and set them to booked, and add to the seat set
-            for (Seat s : freeRequestedSeats) {
-                s.setBooked(true);
-                seatsSet.add(s);
+        List<BookingResultDTO> results = new ArrayList<>();
+
+        for (int i = 0; i < numRequests; i++) {
+            if (bookings[i] != null) {
+                bookingMade(bookings[i]);
+                results.add(new BookingResultDTO(Response.Status.CREATED.getStatusCode(),
+                        uriInfo.getBaseUri() + "concert-service/bookings/" + bookings[i].getBookingId()));
+            } else {
+                // bookings which were fine on their own but were held back by an atomic batch
+                int status = statuses[i] != 0 ? statuses[i] : Response.Status.CONFLICT.getStatusCode();
+                results.add(new BookingResultDTO(status, null));
             }
+        }
 
-            // if we reach here, then the seats are valid and they have been booked
+        GenericEntity<List<BookingResultDTO>> entity = new GenericEntity<List<BookingResultDTO>>(results) {};
 
-            // create a booking (id, date, seats)
-            Booking booking = new Booking(concertId, date, seatsSet);
-            booking.setUuid(userUuid);
+        return Response
+                .ok(entity)
+                .build();
+    }
 
-            // add to the database
-            em.persist(booking);
+    /**
+     * - POST    <base-uri>/holds
+     * Holds seats for the user while they check out, so that nobody
+     * else can book them. The hold lasts for the given number of
+     * seconds unless it is confirmed. The HTTP response message has
+     * a status code of either 201, 400, 401, 403 or 429 depending on
+     * whether the user is authenticated, if the concert, date or
+     * time is wrong, if the seats are already booked or held, or if
+     * the user hasn't been let through the waiting room for the date.
+     * @param brqDTO
+     * @param seconds
+     * @param cookieId
+     * @param admission
+     * @param uriInfo
+     * @return
+     */
+    @POST
+    @Path("/holds")
+    public Response holdSeats(BookingRequestDTO brqDTO, @QueryParam("seconds") Integer seconds, @CookieParam(AUTH_COOKIE) Cookie cookieId, @CookieParam(ADMISSION_COOKIE) Cookie admission, @Context UriInfo uriInfo) {
 
-            // get the number of available seats for the notification
-            int freeSeats = em.createQuery("SELECT COUNT(s) FROM Seat s WHERE s.date = :date AND s.isBooked = false", Long.class)
-                    .setParameter("date", date)
-                    .getSingleResult()
-                    .intValue();
+        String userUuid = authenticate(cookieId).getOwner();
 
-            LOGGER.info("Number of free seats in total: " + freeSeats);
+        checkAdmission(brqDTO.getDate(), admission);
 
-            // check whether the number of seats exceeds a percentage for the subscribers
-            checkWithSubscribers(concertId, date, freeSeats);
+        int holdSeconds = seconds == null ? Config.HOLD_DEFAULT_SECONDS : seconds;
 
-            em.getTransaction().commit();
+        // there must be seats to hold, for a sensible amount of time
+        if (brqDTO.getSeatLabels().isEmpty() || holdSeconds < 1 || holdSeconds > Config.HOLD_MAX_SECONDS) {
+            throw new WebApplicationException(Response.Status.BAD_REQUEST);
+        }
 
-            return Response
-                    .created(URI.create(uriInfo.getBaseUri() + "concert-service/bookings/" + booking.getBookingId()))
-                    .build();
+        // if the concert doesn't exist or isn't on that date, return a bad request
+        if (!seatInventory.exists(brqDTO.getConcertId(), brqDTO.getDate())) {
+            throw new WebApplicationException(Response.Status.BAD_REQUEST);
+        }
 
-        } finally {
-            commitIfActive(em);
-            em.close();
+        SeatHolds.Hold hold = seatHolds.hold(userUuid, brqDTO.getConcertId(), brqDTO.getDate(), brqDTO.getSeatLabels(), holdSeconds);
+
+        if (hold == null) {
+            LOGGER.info("The requested seats have already been claimed");
+            throw new WebApplicationException(Response.Status.FORBIDDEN);
+        }
+
+        return Response
+                .created(URI.create(uriInfo.getBaseUri() + "concert-service/holds/" + hold.getId()))
+                .entity(new SeatHoldDTO(hold.getId(), hold.getConcertId(), hold.getDate(), hold.getLabels(), hold.getExpiry()))
+                .build();
+    }
+
+    /**
+     * - POST    <base-uri>/holds/{id}/confirm
+     * Turns a hold into a booking. The HTTP response message has
+     * a status code of either 201, 401, 403 or 404 depending on
+     * whether the user is authenticated, if the hold belongs to
+     * them, or if the hold has expired.
+     * @param id
+     * @param cookieId
+     * @param uriInfo
+     * @return
+     */
+    @POST
+    @Path("/holds/{id}/confirm")
+    public Response confirmHold(@PathParam("id") String id, @CookieParam(AUTH_COOKIE) Cookie cookieId, @Context UriInfo uriInfo) {
+
+        SeatHolds.Hold hold = findOwnHold(id, cookieId);
+
+        // the hold could expire or be released between finding it and taking it
+        if (!seatHolds.take(hold)) {
+            throw new WebApplicationException(Response.Status.NOT_FOUND);
         }
+
+        return completeBooking(hold.getClaim(), hold.getConcertId(), hold.getDate(), hold.getLabels(), hold.getOwner(), uriInfo);
+    }
+
+    /**
+     * - DELETE    <base-uri>/holds/{id}
+     * Releases a hold, giving its seats back. The HTTP response
+     * message has a status code of either 204, 401, 403 or 404
+     * depending on whether the user is authenticated, if the hold
+     * belongs to them, or if the hold has expired.
+     * @param id
+     * @param cookieId
+     * @return
+     */
+    @DELETE
+    @Path("/holds/{id}")
+    public Response releaseHold(@PathParam("id") String id, @CookieParam(AUTH_COOKIE) Cookie cookieId) {
+
+        SeatHolds.Hold hold = findOwnHold(id, cookieId);
+
+        if (!seatHolds.release(hold)) {
+            throw new WebApplicationException(Response.Status.NOT_FOUND);
+        }
+
+        return Response
+                .noContent()
+                .build();
     }
 
     /**
      * - GET    <base-uri>/seats/{date}
      * Retrieves specified seats on a particular date. The HTTP response
-     * message has a status code of either 200.
+     * message has a status code of either 200 or 429, depending on
+     * whether the user has been let through the waiting room for the date.
+     * The seats are sent as a compact SeatMapDTO of every seat instead
+     * of a list, if the SeatMapDTO media type is accepted or the format
+     * is "compact". The version of the seats is sent in a Seat-Version
+     * header, to ask for the changes since with GET /seats/{date}/changes.
      * @param date
      * @param status
+     * @param format
+     * @param headers
+     * @param admission
      * @return
      */
     @GET
     @Path("/seats/{date}")
-    public Response retrieveSpecifiedSeatsOnDate(@PathParam("date") LocalDateTimeParam date, @QueryParam("status") BookingStatus status) {
+    @Produces({MediaType.APPLICATION_JSON, SeatMapDTO.MEDIA_TYPE})
+    public Response retrieveSpecifiedSeatsOnDate(@PathParam("date") LocalDateTimeParam date, @QueryParam("status") BookingStatus status,
+                                                 @QueryParam("format") String format, @Context HttpHeaders headers, @CookieParam(ADMISSION_COOKIE) Cookie admission) {
 
         // return a list of seatDTO
         List<SeatDTO> seatDTOList = new ArrayList<SeatDTO>();
         LocalDateTime curDate = date.getLocalDateTime();
 
+        checkAdmission(curDate, admission);
+
+        if ("compact".equals(format)) {
+            return retrieveSeatMap(curDate, MediaType.APPLICATION_JSON_TYPE);
+        }
+
+        for (MediaType accepted : headers.getAcceptableMediaTypes()) {
+            if (accepted.isCompatible(SeatMapDTO.MEDIA_TYPE_TYPE) && !accepted.isWildcardSubtype()) {
+                return retrieveSeatMap(curDate, SeatMapDTO.MEDIA_TYPE_TYPE);
+            }
+        }
+
+        // every change up to this version will be in the seats read next
+        long seatVersion = seatChangeLog.version();
+
         // get the seats from the entity manager
-        EntityManager em = persistenceManager.createEntityManager();
+        EntityManager em = persistenceManager.requestEntityManager();
 
         try {
 
@@ -567,7 +786,6 @@ public class ConcertResource {
             // get all the seats
             TypedQuery<Seat> seatQuery = em.createQuery("select s from Seat s where s.date=:date", Seat.class);
             seatQuery.setParameter("date", curDate);
-            seatQuery.setLockMode(LockModeType.PESSIMISTIC_READ);
             List<Seat> seats = seatQuery.getResultList();
 
             LOGGER.info("Number of seats retrieved: " + seats.size());
@@ -587,169 +805,573 @@ public class ConcertResource {
             GenericEntity<List<SeatDTO>> entity = new GenericEntity<List<SeatDTO>>(seatDTOList) {};
 
             return Response
-                    .ok(entity)
+                    .ok(entity, MediaType.APPLICATION_JSON_TYPE)
+                    .header(SEAT_VERSION_HEADER, seatVersion)
                     .build();
         } finally {
             commitIfActive(em);
-            em.close();
         }
     }
 
+    /**
+     * retrieves every seat on a date as a compact seat map. Only the
+     * labels of the booked seats are read, not the seats themselves.
+     * @param date
+     * @param type
+     * @return
+     */
+    private Response retrieveSeatMap(LocalDateTime date, MediaType type) {
+
+        // every change up to this version will be in the seats read next
+        long seatVersion = seatChangeLog.version();
+
+        EntityManager em = persistenceManager.requestEntityManager();
+
+        try {
+            em.getTransaction().begin();
+
+            List<String> bookedLabels = em.createQuery("select s.label from Seat s where s.date = :date and s.isBooked = true", String.class)
+                    .setParameter("date", date)
+                    .getResultList();
+
+            em.getTransaction().commit();
+
+            return Response
+                    .ok(SeatMapper.toSeatMapDto(bookedLabels, seatVersion), type)
+                    .header(SEAT_VERSION_HEADER, seatVersion)
+                    .build();
+        } finally {
+            commitIfActive(em);
+        }
+    }
+
+    /**
+     * - GET    <base-uri>/seats/{date}/changes?since={version}
+     * Retrieves the seats which have been booked or freed on a date
+     * since the given version of the seats. The HTTP response message
+     * has a status code of either 200, 400 or 429, depending on
+     * whether a version is given and whether the user has been let
+     * through the waiting room for the date. If the changes since
+     * that version are no longer kept, the response asks the client
+     * to fetch all the seats again instead.
+     * @param date
+     * @param since
+     * @param admission
+     * @return
+     */
+    @GET
+    @Path("/seats/{date}/changes")
+    public Response retrieveSeatChanges(@PathParam("date") LocalDateTimeParam date, @QueryParam("since") Long since, @CookieParam(ADMISSION_COOKIE) Cookie admission) {
+
+        LocalDateTime curDate = date.getLocalDateTime();
+
+        checkAdmission(curDate, admission);
+
+        if (since == null) {
+            throw new WebApplicationException(Response.Status.BAD_REQUEST);
+        }
+
+        SeatChangeLog.Changes changes = seatChangeLog.since(curDate, since);
+
+        return Response
+                .ok(new SeatChangesDTO(changes.getVersion(), changes.isResync(), changes.getBooked(), changes.getFreed()))
+                .header(SEAT_VERSION_HEADER, changes.getVersion())
+                .build();
+    }
+
+    /**
+     * - GET    <base-uri>/concerts/{id}/dates/{date}/availability
+     * Retrieves the number of free seats for a concert on a particular
+     * date. The HTTP response message has a status code of either
+     * 200 or 404, depending on whether the concert runs on that date.
+     * @param id
+     * @param date
+     * @return
+     */
+    @GET
+    @Path("/concerts/{id}/dates/{date}/availability")
+    public Response retrieveAvailability(@PathParam("id") long id, @PathParam("date") LocalDateTimeParam date) {
+
+        int freeSeats = availabilityCounters.freeSeats(id, date.getLocalDateTime());
+
+        if (freeSeats < 0) {
+            throw new WebApplicationException(Response.Status.NOT_FOUND);
+        }
+
+        return Response
+                .ok(new ConcertInfoNotificationDTO(freeSeats))
+                .build();
+    }
+
+    /**
+     * - GET    <base-uri>/concerts/{id}/dates/{date}/seats/stream
+     * Streams the seats which are booked and freed for a concert on a
+     * particular date as server-sent events, which carry the version
+     * of the seats as their id. To miss nothing since fetching the
+     * seats, send their Seat-Version as the Last-Event-ID header or as
+     * "since", which is also how a dropped stream picks up again. The
+     * HTTP response message has a status code of either 200, 404 or
+     * 429, depending on whether the concert runs on that date and
+     * whether the user has been let through the waiting room for it.
+     * @param id
+     * @param date
+     * @param since
+     * @param lastEventId
+     * @param admission
+     * @param sink
+     * @param sse
+     */
+    @GET
+    @Path("/concerts/{id}/dates/{date}/seats/stream")
+    @Produces(MediaType.SERVER_SENT_EVENTS)
+    public void streamSeats(@PathParam("id") long id, @PathParam("date") LocalDateTimeParam date, @QueryParam("since") Long since,
+                            @HeaderParam(HttpHeaders.LAST_EVENT_ID_HEADER) String lastEventId, @CookieParam(ADMISSION_COOKIE) Cookie admission,
+                            @Context SseEventSink sink, @Context Sse sse) {
+
+        LocalDateTime curDate = date.getLocalDateTime();
+
+        checkAdmission(curDate, admission);
+
+        if (availabilityCounters.freeSeats(id, curDate) < 0) {
+            throw new WebApplicationException(Response.Status.NOT_FOUND);
+        }
+
+        // a reconnecting stream carries on from the last event it got
+        if (lastEventId != null) {
+            try {
+                since = Long.parseLong(lastEventId);
+            } catch (NumberFormatException e) {
+                throw new WebApplicationException(Response.Status.BAD_REQUEST);
+            }
+        }
+
+        seatStreams.open(curDate, since, sink, sse);
+    }
+
+    /**
+     * - POST    <base-uri>/waitingroom/{date}
+     * Joins the waiting room for a date which is in high demand. The
+     * response sets a cookie which identifies the user's place in the
+     * queue, and which lets them book once they reach the front. The
+     * HTTP response message has a status code of either 200 or 503,
+     * depending on whether the waiting room is full. Dates which are
+     * not in high demand let everyone through straight away.
+     * @param date
+     * @param uriInfo
+     * @return
+     */
+    @POST
+    @Path("/waitingroom/{date}")
+    public Response joinWaitingRoom(@PathParam("date") LocalDateTimeParam date, @Context UriInfo uriInfo) {
+
+        LocalDateTime curDate = date.getLocalDateTime();
+
+        if (!waitingRoom.isHot(curDate)) {
+            return Response
+                    .ok(new QueueTicketDTO(null, 0, true))
+                    .build();
+        }
+
+        WaitingRoom.Ticket ticket = waitingRoom.join(curDate);
+
+        if (ticket == null) {
+            throw new WebApplicationException(Response.Status.SERVICE_UNAVAILABLE);
+        }
+
+        long position = ticket.position();
+
+        // the cookie has to reach the booking and seat endpoints, not just the waiting room
+        NewCookie cookie = new NewCookie(ADMISSION_COOKIE, ticket.getToken(), uriInfo.getBaseUri().getPath() + "concert-service",
+                null, null, NewCookie.DEFAULT_MAX_AGE, false);
+
+        return Response
+                .ok(new QueueTicketDTO(ticket.getToken(), position, position == 0))
+                .cookie(cookie)
+                .build();
+    }
+
+    /**
+     * - GET    <base-uri>/waitingroom/{date}
+     * Retrieves the user's place in the waiting room for a date. The
+     * HTTP response message has a status code of either 200 or 404,
+     * depending on whether the user has joined the waiting room.
+     * @param date
+     * @param admission
+     * @return
+     */
+    @GET
+    @Path("/waitingroom/{date}")
+    public Response retrieveQueuePosition(@PathParam("date") LocalDateTimeParam date, @CookieParam(ADMISSION_COOKIE) Cookie admission) {
+
+        LocalDateTime curDate = date.getLocalDateTime();
+
+        if (!waitingRoom.isHot(curDate)) {
+            return Response
+                    .ok(new QueueTicketDTO(null, 0, true))
+                    .build();
+        }
+
+        WaitingRoom.Ticket ticket = admission == null ? null : waitingRoom.get(admission.getValue());
+
+        if (ticket == null || !ticket.getDate().equals(curDate)) {
+            throw new WebApplicationException(Response.Status.NOT_FOUND);
+        }
+
+        long position = ticket.position();
+
+        return Response
+                .ok(new QueueTicketDTO(ticket.getToken(), position, position == 0))
+                .build();
+    }
+
     /**
      * - POST    <base-uri>/subscribe/concertInfo
      * Subscribes a user to a concert and will be notified if the
      * booked seat capacity exceeds a certain percentage. The HTTP
      * response message has a status code of either 200, 400, or 403,
      * depending on whether the user is authenticated, if the concert
-     * exists in the database and the date is correct.
+     * exists in the database and the date is correct. A 429 or 503 is
+     * sent straight away if the user or the service already has too
+     * many subscriptions, and a 503 is sent if the percentage isn't
+     * reached before the subscription times out.
+     * If a Subscription-Id header is sent, then the subscription can be
+     * come back to by subscribing again with the same id, e.g. after
+     * losing the connection, and a notification that was missed is
+     * sent straight away. The id is sent back with the notification.
      * @param subInfo
      * @param sub
      * @param cookieId
+     * @param subscriptionId
      * @return
      */
     @POST
     @Path("/subscribe/concertInfo")
-    public void subscribeToConcert(ConcertInfoSubscriptionDTO subInfo, @Suspended AsyncResponse sub, @CookieParam(AUTH_COOKIE) Cookie cookieId) {
+    public void subscribeToConcert(ConcertInfoSubscriptionDTO subInfo, @Suspended AsyncResponse sub, @CookieParam(AUTH_COOKIE) Cookie cookieId,
+                                   @HeaderParam(SubscriptionRegistry.SUBSCRIPTION_ID_HEADER) String subscriptionId) {
+
+        if (subscriptionId != null && !subscriptionId.matches(SUBSCRIPTION_ID_PATTERN)) {
+            sub.resume(Response.status(Response.Status.BAD_REQUEST).build());
+            return;
+        }
+
+        LOGGER.info("check if the user is logged in");
 
-        // check if the concert date exists
-        EntityManager em = persistenceManager.createEntityManager();
+        // check if the user is the correct user
+        SessionTokens.Session session = cookieId == null ? null : sessionTokens.verify(cookieId.getValue());
 
+        if (session == null) {
+            sub.resume(Response.status(Response.Status.UNAUTHORIZED).build());
+            return;
+        }
+
+        LOGGER.info("User is logged in");
+
+        // no concert found or the concert doesn't contain the date of the subscription
+        if (!seatInventory.exists(subInfo.getConcertId(), subInfo.getDate())) {
+            sub.resume(Response.status(Response.Status.BAD_REQUEST).build());
+            return;
+        }
+
+        LOGGER.info("Concert found");
+
+        // create a new subscription info object with the information, as long as there is room for it
+        boolean cameBack;
         try {
+            cameBack = subscriptionRegistry.add(subInfo.getConcertId(), subInfo.getDate(),
+                    new SubscriptionInfo(sub, subInfo, session.getOwner(), subscriptionId));
+        } catch (WebApplicationException e) {
+            sub.resume(e.getResponse());
+            return;
+        }
 
-            LOGGER.info("check if the user is logged in");
+        // the percentage may have been reached while the subscriber was gone
+        if (cameBack) {
+            checkWithSubscribers(subInfo.getConcertId(), subInfo.getDate());
+        }
 
-            // check if the user is the correct user
-            User user = getLoggedInUser(cookieId, em);
+        LOGGER.info("added the subscription for date: " + subInfo.getDate());
+    }
 
-            if (user == null) {
-                sub.resume(Response.status(Response.Status.UNAUTHORIZED).build());
-                return;
-            }
+    /**
+     * finds the session of the logged in user from their auth cookie,
+     * without going to the database. Throws a 401 if they aren't
+     * logged in, or their token is forged or has expired.
+     * @param cookie
+     * @return
+     */
+    private SessionTokens.Session authenticate(Cookie cookie) {
+        SessionTokens.Session session = cookie == null ? null : sessionTokens.verify(cookie.getValue());
 
-            LOGGER.info("User is logged in");
+        if (session == null) {
+            LOGGER.info("please log in");
+            throw new WebApplicationException(Response.Status.UNAUTHORIZED);
+        }
 
-            em.getTransaction().begin();
+        return session;
+    }
 
-            Concert concert = em.find(Concert.class, subInfo.getConcertId(), LockModeType.PESSIMISTIC_READ);
+    /**
+     * answers a request for part of the catalog from the catalog cache.
+     * The client is sent a 304 if the ETag it already has is the current
+     * one, which doesn't need the catalog at all, otherwise the part is
+     * copied out as it was encoded when the catalog was loaded, gzipped
+     * if the client accepts that, or a 404 is sent if there is no such
+     * part.
+     * @param request
+     * @param acceptEncoding
+     * @param resource
+     * @return
+     */
+    private Response fromCatalog(Request request, String acceptEncoding, String resource) {
+        boolean gzipped = acceptsGzip(acceptEncoding);
 
-            // no concert found or the concert doesn't contain the date of the subscription
-            if (concert == null || !concert.getDates().contains(subInfo.getDate())) {
-                sub.resume(Response.status(Response.Status.BAD_REQUEST).build());
-                return;
-            }
+        Response.ResponseBuilder notModified = request.evaluatePreconditions(catalogCache.etag(resource, gzipped));
+        if (notModified != null) {
+            return notModified
+                    .header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING)
+                    .build();
+        }
 
-            LOGGER.info("Concert found in the database");
+        CatalogCache.Catalog catalog = catalogCache.get();
+        CatalogCache.Snapshot snapshot = catalog.get(resource);
 
-            em.getTransaction().commit();
-        } finally {
-            em.close();
+        if (snapshot == null) {
+            throw new WebApplicationException(Response.Status.NOT_FOUND);
         }
 
-        // check if the map contains the date, if not, create a new linked list
-        synchronized (subsInfo) {
-            if (!subsInfo.containsKey(subInfo.getDate())) {
-                subsInfo.put(subInfo.getDate(), new LinkedList<>());
+        Response.ResponseBuilder builder = Response
+                .ok(gzipped ? snapshot.getGzipped() : snapshot.getJson(), MediaType.APPLICATION_JSON_TYPE)
+                .tag(catalog.etag(resource, gzipped))
+                .header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+
+        if (gzipped) {
+            builder.encoding("gzip");
+        }
+
+        return builder.build();
+    }
+
+    /**
+     * checks whether an Accept-Encoding header allows gzip, either
+     * by name or with a wildcard, as long as it isn't given a q of 0.
+     * @param acceptEncoding
+     * @return
+     */
+    private static boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+
+        for (String coding : acceptEncoding.split(",")) {
+            String[] parts = coding.split(";");
+            String name = parts[0].trim();
+
+            if (name.equalsIgnoreCase("gzip") || name.equals("*")) {
+                for (int i = 1; i < parts.length; i++) {
+                    if (parts[i].trim().matches("q=0(\\.0*)?")) {
+                        return false;
+                    }
+                }
+                return true;
             }
         }
 
-        // create a new subscription info object with the information
-        subsInfo.get(subInfo.getDate()).add(new SubscriptionInfo(sub, subInfo));
+        return false;
+    }
 
-        LOGGER.info("added the subscription for date: " + subInfo.getDate());
+    /**
+     * checks against the subscribers for a specific concert date whether the
+     * percentage of available seats exceeds their specified date they
+     * required for a notification. If so, a notification is queued for
+     * each user. The check is coalesced with any other changes to the
+     * date made within a short window, so the booking doesn't wait for
+     * it. Must only be called once the booking or cancellation has been
+     * committed and counted.
+     * @param concertId
+     * @param date
+     */
+    private void checkWithSubscribers(long concertId, LocalDateTime date) {
+        notificationCoalescer.changed(concertId, date);
     }
 
     /**
-     * Gets the logged in user from the database. If they don't exist,
-     * then the function returns null otherwise the user is returned.
-     * @param cookie
-     * @param em
+     * makes a booking at most once for the given idempotency key. The
+     * outcome of the first attempt is remembered and replayed to any
+     * retries, without going near the database. Errors which might go
+     * away on their own aren't remembered, so a retry has another go.
+     * @param key
+     * @param fingerprint
+     * @param booking
      * @return
      */
-    private User getLoggedInUser(Cookie cookie, EntityManager em) {
-        if (cookie == null) {
-            return null;
-        }
+    private Response bookIdempotently(String key, String fingerprint, Supplier<Response> booking) {
 
-        User found = null;
-        em.getTransaction().begin();
+        CompletableFuture<IdempotencyCache.Outcome> earlier = idempotencyCache.begin(key, fingerprint);
 
-        try {
+        if (earlier != null) {
+            IdempotencyCache.Outcome outcome = null;
 
-            // get the user with the uuid (cookie value)
-            TypedQuery<User> userQuery = em.createQuery("SELECT u FROM User u where u.uuid = :uuid", User.class);
-            userQuery.setParameter("uuid", UUID.fromString(cookie.getValue()));
-            userQuery.setLockMode(LockModeType.PESSIMISTIC_READ);
-            found = userQuery.getSingleResult();
+            try {
+                outcome = earlier.get(IDEMPOTENT_WAIT_SECONDS, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException | TimeoutException e) {
+                // fall through, the earlier attempt hasn't got an outcome
+            }
 
-        } catch(NoResultException e) {
-            // if there is no result, do nothing, output will be null
-            LOGGER.info("please log in");
+            // the earlier attempt is still going, or failed in a way that can be retried
+            if (outcome == null) {
+                throw new WebApplicationException(Response.Status.CONFLICT);
+            }
+
+            LOGGER.info("Replaying the outcome of booking " + key);
+
+            return Response
+                    .status(outcome.getStatus())
+                    .location(outcome.getLocation() == null ? null : URI.create(outcome.getLocation()))
+                    .header(IDEMPOTENT_REPLAY_HEADER, "true")
+                    .build();
         }
 
-        em.getTransaction().commit();
+        try {
+            Response response = booking.get();
+            idempotencyCache.complete(key, new IdempotencyCache.Outcome(response.getStatus(),
+                    response.getLocation() == null ? null : response.getLocation().toString()));
+            return response;
+
+        } catch (WebApplicationException e) {
+            int status = e.getResponse().getStatus();
+            if (status == Response.Status.TOO_MANY_REQUESTS.getStatusCode() || status >= 500) {
+                idempotencyCache.abandon(key);
+            } else {
+                idempotencyCache.complete(key, new IdempotencyCache.Outcome(status, null));
+            }
+            throw e;
 
-        return found;
+        } catch (RuntimeException e) {
+            idempotencyCache.abandon(key);
+            throw e;
+        }
     }
 
     /**
-     * checks against all the subscribers for a specific date whether the
-     * percentage of available seats exceeds their specified date they
-     * required for a notification. If so, a notification is sent to
-     * each user.
+     * hashes what a booking request asks for, so that a retry can be
+     * told apart from a different booking which reuses its key.
+     * @param brqDTO
+     * @return
+     */
+    private static String fingerprint(BookingRequestDTO brqDTO) {
+
+        String body = brqDTO == null ? "" : brqDTO.getConcertId() + "\n" + brqDTO.getDate() + "\n" + brqDTO.getSeatLabels();
+
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(body.getBytes(StandardCharsets.UTF_8));
+            return Base64.getEncoder().encodeToString(hash);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * writes the booking for seats which have already been claimed in
+     * the seat inventory, and notifies any subscribers. The claim is
+     * released if the booking doesn't make it into the database.
+     * @param claim
      * @param concertId
      * @param date
-     * @param availableSeats
+     * @param seatLabels
+     * @param userUuid
+     * @param uriInfo
+     * @return
      */
-    private void checkWithSubscribers(long concertId, LocalDateTime date, int availableSeats) {
+    private Response completeBooking(SeatInventory.Claim claim, long concertId, LocalDateTime date, List<String> seatLabels, String userUuid, UriInfo uriInfo) {
+        boolean booked = false;
 
-        // get the percentage from the available seats
-        int percentageBooked = 100 - (int)(((double)availableSeats / NUM_SEATS_IN_THEATRE) * 100);
+        try {
 
-        LOGGER.info("Percentage booked for the " + date.toString() + ": " + percentageBooked + "%");
+            Booking booking = Config.BOOKING_GROUP_COMMIT
+                    ? bookingPipeline.write(concertId, date, seatLabels, userUuid)
+                    : bookingWriter.write(concertId, date, seatLabels, userUuid);
+            booked = true;
 
-        // if the key doesn't exist, then return because there are no subscribers for that date/concert
-        if (!subsInfo.containsKey(date)) {
-            LOGGER.info("the map doesn't contain the specified date: " + date.toString());
-            return;
-        }
+            bookingMade(booking);
 
-        // iterate through the subscriptions
-        for (Iterator<SubscriptionInfo> it = subsInfo.get(date).iterator(); it.hasNext(); ) {
-            SubscriptionInfo subscriptionInfo = it.next();
+            return Response
+                    .created(URI.create(uriInfo.getBaseUri() + "concert-service/bookings/" + booking.getBookingId()))
+                    .build();
 
-            // check if it is the same concert to prevent notifying someone for the same concert.
-            if (subscriptionInfo.getSubInfo().getConcertId() != concertId) {
-                LOGGER.info("This is the wrong date");
-                return;
+        } finally {
+            // give the seats back if the booking didn't make it into the database
+            if (!booked) {
+                claim.release();
             }
+        }
+    }
 
-            if (percentageBooked >= subscriptionInfo.getSubInfo().getPercentageBooked()) {
-                LOGGER.info("Notifying someone...");
+    /**
+     * updates the free seat counter and the seat change log after a
+     * booking has been committed, and notifies any subscribers.
+     * @param booking
+     */
+    private void bookingMade(Booking booking) {
 
-                // remove the subscriber so they are only updated once which is done in O(1)
-                it.remove();
+        seatChangeLog.record(booking.getDate(), booking.getSeats().stream().map(Seat::getLabel).collect(Collectors.toList()), true);
 
-                // send out the notification.
-                subscriptionInfo.getAsyncResponse().resume(Response.ok(new ConcertInfoNotificationDTO(availableSeats)).build());
-            }
+        // the claim means the seats were free until now, so the counter can be updated without counting them
+        int freeSeats = availabilityCounters.booked(booking.getConcertId(), booking.getDate(), booking.getSeats().size());
+
+        LOGGER.info("Number of free seats in total: " + freeSeats);
+
+        // check whether the number of seats exceeds a percentage for the subscribers
+        checkWithSubscribers(booking.getConcertId(), booking.getDate());
+    }
+
+    /**
+     * turns the user away with a 429 if the date is in high demand and
+     * they haven't been let through the waiting room for it yet. This
+     * is checked before anything else is looked up, so that it is cheap.
+     * @param date
+     * @param admission
+     */
+    private void checkAdmission(LocalDateTime date, Cookie admission) {
+        if (!waitingRoom.isAdmitted(date, admission == null ? null : admission.getValue())) {
+            throw new WebApplicationException(Response.Status.TOO_MANY_REQUESTS);
         }
     }
 
     /**
-     * creates a new session for a user and assigns them a random
-     * UUID to identify them.
-     * @param user
-     * @param em
+     * finds a hold which belongs to the logged in user. Throws a 401
+     * if they aren't logged in, a 404 if the hold doesn't exist and
+     * a 403 if it belongs to someone else.
+     * @param id
+     * @param cookieId
      * @return
      */
-    private NewCookie newSession(User user, EntityManager em) {
-        em.getTransaction().begin();
+    private SeatHolds.Hold findOwnHold(String id, Cookie cookieId) {
+
+        String userUuid = authenticate(cookieId).getOwner();
+
+        SeatHolds.Hold hold = seatHolds.get(id);
+
+        if (hold == null) {
+            throw new WebApplicationException(Response.Status.NOT_FOUND);
+        }
 
-        user.setUuid(UUID.randomUUID());
+        if (!hold.getOwner().equals(userUuid)) {
+            throw new WebApplicationException(Response.Status.FORBIDDEN);
+        }
 
-        em.getTransaction().commit();
+        return hold;
+    }
 
-        return new NewCookie(AUTH_COOKIE, user.getUuid().toString());
+    /**
+     * creates a new session for a user, as a signed token which says
+     * who they are, so nothing is written to the database.
+     * @param user
+     * @return
+     */
+    private NewCookie newSession(User user) {
+        return new NewCookie(AUTH_COOKIE, sessionTokens.issue(user));
     }
 
     /**
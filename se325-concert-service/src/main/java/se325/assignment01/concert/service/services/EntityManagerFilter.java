@@ -0,0 +1,38 @@
+package se325.assignment01.concert.service.services;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.annotation.WebFilter;
+import javax.servlet.http.HttpServletRequest;
+import javax.ws.rs.HttpMethod;
+import java.io.IOException;
+
+/**
+ * This filter gives each request its own EntityManager, which resource methods get from
+ * {@link PersistenceManager#requestEntityManager()}. The EntityManager is only made if a method asks for it, and is
+ * closed once the request has been handled, however it ends. GETs get a read only one.
+ * <p>
+ * It is a servlet filter rather than a JAX-RS one, as JAX-RS response filters aren't run when a resource method throws
+ * an exception which nothing maps to a response. A request which goes on asynchronously has its EntityManager closed
+ * once the resource method has returned, so the response it is resumed with mustn't lazily load anything.
+ */
+@WebFilter(urlPatterns = "/services/*", asyncSupported = true)
+public class EntityManagerFilter implements Filter {
+
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain) throws IOException, ServletException {
+        String method = ((HttpServletRequest) request).getMethod();
+        boolean readOnly = HttpMethod.GET.equals(method) || HttpMethod.HEAD.equals(method);
+
+        PersistenceManager persistenceManager = PersistenceManager.instance();
+        Object scope = persistenceManager.beginRequest(readOnly);
+        try {
+            chain.doFilter(request, response);
+        } finally {
+            persistenceManager.endRequest(scope);
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package se325.assignment01.concert.service.services;
+
+import se325.assignment01.concert.service.util.Config;
+
+import javax.ws.rs.WebApplicationException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Singleton class that remembers the outcome of requests which were sent with an idempotency key, so that a client
+ * can safely retry a request it never got an answer for. A retry gets back the outcome of the original request
+ * rather than being carried out again. A request which reuses a key with a different body isn't a retry, and is
+ * turned away with a 422.
+ * <p>
+ * The cache holds a bounded number of outcomes, and forgets each of them after a while. A retry which arrives while
+ * the original request is still being carried out waits for its outcome, so requests are only forgotten once they
+ * have one.
+ */
+public class IdempotencyCache {
+
+    private static final IdempotencyCache INSTANCE = new IdempotencyCache();
+
+    private static final int UNPROCESSABLE_ENTITY = 422;
+
+    // in insertion order, which is also expiry order as every request lives for the same time
+    private final LinkedHashMap<String, Request> requests = new LinkedHashMap<>();
+
+    protected IdempotencyCache() {
+    }
+
+    public static IdempotencyCache instance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Starts a request with the given key, unless a request with the same key has been seen before.
+     *
+     * @param key         the idempotency key, which should include who the request is from
+     * @param fingerprint a hash of the body of the request
+     * @return null if the caller should carry out the request and then call {@link #complete(String, Outcome)} or
+     * {@link #abandon(String)}, otherwise the outcome of the earlier request, which may still be in progress
+     * @throws WebApplicationException a 422 if the earlier request with the key had a different body
+     */
+    public synchronized CompletableFuture<Outcome> begin(String key, String fingerprint) {
+        long now = System.nanoTime();
+
+        // throw away the requests which have expired, which are all at the front
+        for (Iterator<Request> it = requests.values().iterator(); it.hasNext(); ) {
+            Request request = it.next();
+            if (now - request.expiresAt < 0) {
+                break;
+            }
+            if (request.outcome.isDone()) {
+                it.remove();
+            }
+        }
+
+        Request request = requests.get(key);
+        if (request != null) {
+            if (!request.fingerprint.equals(fingerprint)) {
+                throw new WebApplicationException(UNPROCESSABLE_ENTITY);
+            }
+            return request.outcome;
+        }
+
+        requests.put(key, new Request(fingerprint, now + TimeUnit.SECONDS.toNanos(Config.IDEMPOTENCY_TTL_SECONDS)));
+
+        // make room by forgetting the oldest requests which have an outcome, nobody can be waiting on them
+        for (Iterator<Request> it = requests.values().iterator(); requests.size() > Config.IDEMPOTENCY_MAX_ENTRIES && it.hasNext(); ) {
+            if (it.next().outcome.isDone()) {
+                it.remove();
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Records the outcome of a request, and passes it on to any retries which are waiting for it.
+     */
+    public void complete(String key, Outcome outcome) {
+        Request request;
+        synchronized (this) {
+            request = requests.get(key);
+        }
+        if (request != null) {
+            request.outcome.complete(outcome);
+        }
+    }
+
+    /**
+     * Forgets a request which failed in a way that is worth retrying, so that the next retry is carried out again.
+     * Retries which were waiting for it are told that it is still in progress.
+     */
+    public void abandon(String key) {
+        Request request;
+        synchronized (this) {
+            request = requests.remove(key);
+        }
+        if (request != null) {
+            request.outcome.complete(null);
+        }
+    }
+
+    public synchronized void clear() {
+        requests.clear();
+    }
+
+    private static class Request {
+        private final CompletableFuture<Outcome> outcome = new CompletableFuture<>();
+        private final String fingerprint;
+        private final long expiresAt;
+
+        private Request(String fingerprint, long expiresAt) {
+            this.fingerprint = fingerprint;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    /**
+     * The outcome of a request.
+     * status     the HTTP status of the response
+     * location   the location of anything that was created, or null
+     */
+    public static class Outcome {
+
+        private final int status;
+        private final String location;
+
+        public Outcome(int status, String location) {
+            this.status = status;
+            this.location = location;
+        }
+
+        public int getStatus() {
+            return status;
+        }
+
+        public String getLocation() {
+            return location;
+        }
+    }
+}
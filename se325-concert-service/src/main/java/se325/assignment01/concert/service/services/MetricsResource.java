@@ -0,0 +1,30 @@
+package se325.assignment01.concert.service.services;
+
+import se325.assignment01.concert.service.util.Metrics;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+
+/**
+ * This service reports the metrics that the concert service keeps about itself, such as queue depths and latencies.
+ */
+@Path("/concert-service-metrics")
+@Produces(MediaType.APPLICATION_JSON)
+public class MetricsResource {
+
+    /**
+     * - GET    <base-uri>
+     * Retrieves every metric by name. The HTTP response message has a
+     * status code of 200.
+     * @return
+     */
+    @GET
+    public Response retrieveMetrics() {
+        return Response
+                .ok(Metrics.snapshot())
+                .build();
+    }
+}
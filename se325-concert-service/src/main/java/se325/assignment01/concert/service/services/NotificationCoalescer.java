@@ -0,0 +1,111 @@
+package se325.assignment01.concert.service.services;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se325.assignment01.concert.service.domain.SubscriptionInfo;
+import se325.assignment01.concert.service.util.ConcertDateKey;
+import se325.assignment01.concert.service.util.Config;
+import se325.assignment01.concert.service.util.Metrics;
+
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static se325.assignment01.concert.service.util.TheatreLayout.NUM_SEATS_IN_THEATRE;
+
+/**
+ * Singleton class that decides which subscribers to notify when the seats on a date change. Rather than checking the
+ * subscribers on every booking, a change only marks its date, and the subscribers to the date are checked once the
+ * coalescing window has passed, against the number of free seats at that point. However many bookings are made on a
+ * date during the window, its subscribers are only checked once.
+ */
+public class NotificationCoalescer {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(NotificationCoalescer.class);
+
+    private static final NotificationCoalescer INSTANCE = new NotificationCoalescer();
+
+    private final Set<ConcertDateKey> pending = ConcurrentHashMap.newKeySet();
+
+    private final ScheduledExecutorService checker = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "notification-coalescer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Metrics.Counter changes = Metrics.counter("notifications.changes");
+    private final Metrics.Counter checks = Metrics.counter("notifications.checks");
+
+    protected NotificationCoalescer() {
+    }
+
+    public static NotificationCoalescer instance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Records that the free seats on a date have changed, so its subscribers need to be checked. Must only be called
+     * once the change has been committed and counted by {@link AvailabilityCounters}.
+     *
+     * @param concertId the id of the concert
+     * @param date      the date of the performance
+     */
+    public void changed(long concertId, LocalDateTime date) {
+        changes.increment();
+
+        if (Config.NOTIFICATION_COALESCE_MILLIS <= 0) {
+            check(concertId, date);
+            return;
+        }
+
+        ConcertDateKey key = new ConcertDateKey(concertId, date);
+
+        // the date is already waiting to be checked, and the check will see this change
+        if (!pending.add(key)) {
+            return;
+        }
+
+        checker.schedule(() -> {
+            // unmarked first, so that a change made during the check gets a check of its own
+            pending.remove(key);
+            try {
+                check(concertId, date);
+            } catch (RuntimeException e) {
+                LOGGER.info("Failed to check the subscribers for " + key + ": " + e.getMessage());
+            }
+        }, Config.NOTIFICATION_COALESCE_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * checks the subscribers to a date against the number of free seats it has now, and queues a notification for
+     * each of them whose percentage has been reached.
+     */
+    private void check(long concertId, LocalDateTime date) {
+        checks.increment();
+
+        int availableSeats = AvailabilityCounters.instance().freeSeats(concertId, date);
+        if (availableSeats < 0) {
+            return;
+        }
+
+        // get the percentage from the available seats
+        int percentageBooked = 100 - (int) (((double) availableSeats / NUM_SEATS_IN_THEATRE) * 100);
+
+        LOGGER.info("Percentage booked for the " + date.toString() + ": " + percentageBooked + "%");
+
+        // only the subscribers whose percentage has been reached are looked at, and each is removed so they are
+        // only updated once
+        List<SubscriptionInfo> reached = SubscriptionRegistry.instance().reached(concertId, date, percentageBooked, availableSeats);
+
+        if (!reached.isEmpty()) {
+            LOGGER.info("Notifying " + reached.size() + " subscribers...");
+
+            // send out the notifications, without waiting for them to be written
+            NotificationDispatcher.instance().dispatch(reached, availableSeats);
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package se325.assignment01.concert.service.services;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se325.assignment01.concert.service.domain.SubscriptionInfo;
+import se325.assignment01.concert.service.util.Config;
+import se325.assignment01.concert.service.util.Metrics;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Singleton class that sends notifications to subscribers on a small pool of threads of its own, so that a booking
+ * doesn't wait for its notifications to be written out, however many subscribers there are.
+ * <p>
+ * Notifications wait in a bounded queue. If the queue is ever full, whoever is dispatching sends the notification
+ * itself. That is the {@link NotificationCoalescer}'s thread, so the checks for every date are held up until the
+ * senders catch up, rather than the queue growing without limit. Bookings aren't held up, and the dates changed in
+ * the meantime are each checked once when the coalescer gets to them.
+ */
+public class NotificationDispatcher {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(NotificationDispatcher.class);
+
+    private static final NotificationDispatcher INSTANCE = new NotificationDispatcher();
+
+    private final ThreadPoolExecutor senders = new ThreadPoolExecutor(
+            Config.NOTIFICATION_THREADS, Config.NOTIFICATION_THREADS, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(Config.NOTIFICATION_QUEUE_CAPACITY),
+            r -> {
+                Thread thread = new Thread(r, "notification-dispatcher");
+                thread.setDaemon(true);
+                return thread;
+            },
+            new ThreadPoolExecutor.CallerRunsPolicy());
+
+    private final Metrics.Counter sent = Metrics.counter("notifications.sent");
+    private final Metrics.Counter failed = Metrics.counter("notifications.failed");
+    private final Metrics.Timer latency = Metrics.timer("notifications.dispatchLatency");
+
+    protected NotificationDispatcher() {
+        Metrics.gauge("notifications.queueDepth", () -> senders.getQueue().size());
+    }
+
+    public static NotificationDispatcher instance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Queues a notification for each of the given subscribers. Must only be called once the booking which the
+     * notifications are about has been committed.
+     *
+     * @param subscribers    the subscribers to notify
+     * @param availableSeats the number of seats left, to tell them
+     */
+    public void dispatch(List<SubscriptionInfo> subscribers, int availableSeats) {
+        long queuedAt = System.nanoTime();
+
+        for (SubscriptionInfo subscriber : subscribers) {
+            senders.execute(() -> {
+                try {
+                    if (subscriber.getAsyncResponse().resume(SubscriptionRegistry.notification(subscriber, availableSeats))) {
+                        SubscriptionRegistry.instance().delivered(subscriber);
+                        sent.increment();
+                    } else {
+                        // the subscriber has gone, but may come back for it
+                        SubscriptionRegistry.instance().undelivered(subscriber, availableSeats);
+                        failed.increment();
+                    }
+                } catch (RuntimeException e) {
+                    LOGGER.info("Failed to notify a subscriber: " + e.getMessage());
+                    SubscriptionRegistry.instance().undelivered(subscriber, availableSeats);
+                    failed.increment();
+                } finally {
+                    latency.recordSince(queuedAt);
+                }
+            });
+        }
+    }
+}
@@ -1,8 +1,14 @@
 package se325.assignment01.concert.service.services;
 
+import org.hibernate.FlushMode;
+import org.hibernate.Session;
+import se325.assignment01.concert.service.util.Config;
+
 import javax.persistence.EntityManager;
 import javax.persistence.EntityManagerFactory;
 import javax.persistence.Persistence;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
  * Singleton class that manages an EntityManagerFactory. When a
@@ -12,34 +18,154 @@ import javax.persistence.Persistence;
  * <p>
  * When a Web service application component (e.g. a resource object) requires a
  * persistence context, it should call the PersistentManager's
- * createEntityManager() method to acquire one.
+ * createEntityManager() method to acquire one. A component which only reads
+ * should call createReadOnlyEntityManager() instead.
+ * <p>
+ * A resource method can instead call requestEntityManager(), which gives it
+ * the EntityManager of the request it is handling. The EntityManager is made
+ * the first time it is asked for, and closed by the EntityManagerFilter once
+ * the request has been handled, so every method that handles the request
+ * shares it rather than each making and closing one of its own. It may be
+ * closed before an asynchronous response is written, so resource methods
+ * return DTOs rather than entities which might lazily load.
  * <p>
- * This class is complete - you do not need to modify it.
+ * The database in persistence.xml can be swapped for another with the
+ * concert.database.url system property, e.g. by the mvstore Maven profile.
+ * Connections to it are pooled by the PooledConnectionProvider, which is sized
+ * from the concert.db.* system properties.
  */
 public class PersistenceManager {
-    private static PersistenceManager _instance = null;
+    private static final PersistenceManager INSTANCE = new PersistenceManager();
+
+    // replaced when the database is reset, which may happen while other requests are being handled
+    private volatile EntityManagerFactory entityManagerFactory;
 
-    private EntityManagerFactory entityManagerFactory;
+    // the request being handled by each thread, if any
+    private final ThreadLocal<RequestScope> requestScope = new ThreadLocal<>();
 
     protected PersistenceManager() {
-        entityManagerFactory = Persistence.createEntityManagerFactory("se325.assignment01.concert");
+        entityManagerFactory = createEntityManagerFactory();
     }
 
     public EntityManager createEntityManager() {
         return entityManagerFactory.createEntityManager();
     }
 
-    public static PersistenceManager instance() {
-        if (_instance == null) {
-            _instance = new PersistenceManager();
+    /**
+     * Creates an EntityManager for reads which don't need to lock anything. Nothing read through it is tracked for
+     * changes or flushed. Reads shouldn't ask for locks either, so on an MVStore database they are answered from a
+     * snapshot without waiting on, or holding up, bookings.
+     */
+    public EntityManager createReadOnlyEntityManager() {
+        EntityManager em = entityManagerFactory.createEntityManager();
+
+        Session session = em.unwrap(Session.class);
+        session.setDefaultReadOnly(true);
+        session.setHibernateFlushMode(FlushMode.MANUAL);
+
+        return em;
+    }
+
+    /**
+     * Gets the EntityManager of the request that this thread is handling, making it if this is the first time it has
+     * been asked for. It is read only if the request is a GET. It must not be closed; that is done once the request
+     * has been handled.
+     *
+     * @throws IllegalStateException if this thread isn't handling a request
+     */
+    public EntityManager requestEntityManager() {
+        RequestScope scope = requestScope.get();
+        if (scope == null) {
+            throw new IllegalStateException("Not handling a request");
         }
-        return _instance;
+
+        if (scope.em == null) {
+            scope.em = scope.readOnly ? createReadOnlyEntityManager() : createEntityManager();
+        }
+        return scope.em;
+    }
+
+    /**
+     * Starts a request on this thread. Every request must be ended, but should an earlier one have been left behind,
+     * it is ended first.
+     *
+     * @param readOnly whether the request only reads
+     * @return the request, which is needed to end it
+     */
+    Object beginRequest(boolean readOnly) {
+        endRequest(requestScope.get());
+
+        RequestScope scope = new RequestScope(readOnly);
+        requestScope.set(scope);
+        return scope;
+    }
+
+    /**
+     * Ends a request, closing its EntityManager if it has one. Does nothing if the request isn't the one this thread
+     * is handling, e.g. if it has already been ended.
+     *
+     * @param request what beginRequest() returned
+     */
+    void endRequest(Object request) {
+        RequestScope scope = requestScope.get();
+        if (scope == null || scope != request) {
+            return;
+        }
+
+        requestScope.remove();
+
+        EntityManager em = scope.em;
+        if (em != null && em.isOpen()) {
+            try {
+                // anything which wasn't committed by now is a mistake, so is thrown away
+                if (em.getTransaction().isActive()) {
+                    em.getTransaction().rollback();
+                }
+            } finally {
+                em.close();
+            }
+        }
+    }
+
+    public static PersistenceManager instance() {
+        return INSTANCE;
     }
 
     // FOR TESTING ONLY! Will wipe the database.
     public void reset() {
         entityManagerFactory.close();
-        entityManagerFactory = Persistence.createEntityManagerFactory("se325.assignment01.concert");
+        entityManagerFactory = createEntityManagerFactory();
+    }
+
+    private static EntityManagerFactory createEntityManagerFactory() {
+        Map<String, String> overrides = new HashMap<>();
+
+        if (!Config.DATABASE_URL.isEmpty()) {
+            overrides.put("javax.persistence.jdbc.url", Config.DATABASE_URL);
+        }
+
+        // read by HikariCP, which only takes strings
+        overrides.put("hibernate.hikari.maximumPoolSize", Integer.toString(Config.DB_POOL_SIZE));
+        overrides.put("hibernate.hikari.connectionTimeout", Integer.toString(Config.DB_POOL_TIMEOUT_MILLIS));
+        overrides.put("hibernate.hikari.leakDetectionThreshold", Integer.toString(Config.DB_POOL_LEAK_MILLIS));
+
+        overrides.put("hibernate.jdbc.batch_size", Integer.toString(Config.DB_BATCH_SIZE));
+
+        return Persistence.createEntityManagerFactory("se325.assignment01.concert", overrides);
     }
 
+    /**
+     * The request that a thread is handling.
+     * readOnly whether the request only reads
+     * em       the request's EntityManager, or null if it hasn't been asked for yet
+     */
+    private static class RequestScope {
+
+        private final boolean readOnly;
+        private EntityManager em;
+
+        private RequestScope(boolean readOnly) {
+            this.readOnly = readOnly;
+        }
+    }
 }
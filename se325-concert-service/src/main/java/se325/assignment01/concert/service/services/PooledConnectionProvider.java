@@ -0,0 +1,51 @@
+package se325.assignment01.concert.service.services;
+
+import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.HikariPoolMXBean;
+import org.hibernate.HibernateException;
+import org.hibernate.hikaricp.internal.HikariCPConnectionProvider;
+import se325.assignment01.concert.service.util.Metrics;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.util.Map;
+
+/**
+ * Gives Hibernate its connections from a HikariCP pool, and keeps metrics about the pool: how many connections are
+ * in use, how many requests are waiting for one, how long they wait and how often they give up waiting.
+ * <p>
+ * The pool is set up from the hibernate.hikari.* properties, which {@link PersistenceManager} sets.
+ */
+public class PooledConnectionProvider extends HikariCPConnectionProvider {
+
+    private final Metrics.Timer wait = Metrics.timer("db.pool.wait");
+    private final Metrics.Counter timeouts = Metrics.counter("db.pool.timeouts");
+
+    @Override
+    public void configure(Map props) throws HibernateException {
+        super.configure(props);
+
+        // the gauges are replaced whenever the database is reset, so they always read the current pool
+        HikariPoolMXBean pool = unwrap(HikariDataSource.class).getHikariPoolMXBean();
+        Metrics.gauge("db.pool.active", pool::getActiveConnections);
+        Metrics.gauge("db.pool.idle", pool::getIdleConnections);
+        Metrics.gauge("db.pool.total", pool::getTotalConnections);
+        Metrics.gauge("db.pool.waiting", pool::getThreadsAwaitingConnection);
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        long start = System.nanoTime();
+
+        try {
+            return super.getConnection();
+        } catch (SQLTransientConnectionException e) {
+            // no connection was free within the connection timeout
+            timeouts.increment();
+            throw e;
+        } finally {
+            wait.recordSince(start);
+        }
+    }
+}
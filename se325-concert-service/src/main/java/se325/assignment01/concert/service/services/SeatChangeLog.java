@@ -0,0 +1,204 @@
+package se325.assignment01.concert.service.services;
+
+import se325.assignment01.concert.service.util.Config;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Singleton class that remembers the most recent seats to be booked or freed on each date, so that a client which
+ * already has the seats for a date only has to fetch what has changed since.
+ * <p>
+ * Every change is given a version number. The numbers only ever go up, so the version of the latest change a client
+ * knows about is all it needs to send to get everything after it. Only a bounded number of changes are kept for each
+ * date, and a client which is further behind than that has to fetch all the seats again.
+ */
+public class SeatChangeLog {
+
+    private static final SeatChangeLog INSTANCE = new SeatChangeLog();
+
+    // starts from the time so that versions given out before a restart are older than anything in the log
+    private final AtomicLong version = new AtomicLong(System.currentTimeMillis());
+
+    private final ConcurrentHashMap<LocalDateTime, Ring> rings = new ConcurrentHashMap<>();
+
+    // every change after this version is in a ring, unless the ring has since overflowed
+    private volatile long clearedAt = version.get();
+
+    protected SeatChangeLog() {
+    }
+
+    public static SeatChangeLog instance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Gets the current version. Anything read from the database after this is called includes every change up to
+     * this version.
+     */
+    public long version() {
+        return version.get();
+    }
+
+    /**
+     * Records that seats have been booked or freed, and streams the change to everyone watching the seats on the
+     * date. Must be called after the change has been committed.
+     *
+     * @param date   the date of the seats
+     * @param labels the labels of the seats that changed
+     * @param booked whether the seats were booked, or freed
+     */
+    public void record(LocalDateTime date, List<String> labels, boolean booked) {
+        Ring ring = rings.computeIfAbsent(date, d -> new Ring(Config.SEAT_CHANGES_CAPACITY, clearedAt));
+
+        synchronized (ring) {
+            long changeVersion = version.incrementAndGet();
+            for (String label : labels) {
+                ring.add(changeVersion, label, booked);
+            }
+
+            // streamed while the ring is locked, so that the changes to a date are always streamed in order
+            SeatStreams.instance().publish(date, changeVersion, labels, booked);
+        }
+    }
+
+    /**
+     * Gets the seats which have changed on a date since the given version. A seat which changed more than once is
+     * only given in its latest state.
+     *
+     * @param date  the date of the seats
+     * @param since the version of the latest change the client knows about
+     * @return the changes, which ask the client to resync if the changes it needs are no longer kept
+     */
+    public Changes since(LocalDateTime date, long since) {
+        // read first, so that any change this misses comes after now
+        long now = version.get();
+        Ring ring = rings.get(date);
+
+        if (ring == null) {
+            return since < clearedAt || since > now ? Changes.resync(now) : new Changes(now, new LinkedHashMap<>());
+        }
+
+        synchronized (ring) {
+            // no more changes can be added to this ring while it is locked, so they all come before now
+            now = version.get();
+
+            if (since < ring.floor || since > now) {
+                return Changes.resync(now);
+            }
+
+            return new Changes(now, ring.after(since));
+        }
+    }
+
+    /**
+     * Forgets every change. Must be called whenever the database is reset.
+     */
+    public void clear() {
+        clearedAt = version.incrementAndGet();
+        rings.clear();
+    }
+
+    /**
+     * A bounded ring of the latest changes for a date, oldest first.
+     */
+    private static class Ring {
+
+        private final long[] versions;
+        private final String[] labels;
+        private final boolean[] booked;
+
+        private int next;
+        private int size;
+
+        // the changes up to and including this version are no longer all in the ring
+        private long floor;
+
+        private Ring(int capacity, long floor) {
+            this.versions = new long[capacity];
+            this.labels = new String[capacity];
+            this.booked = new boolean[capacity];
+            this.floor = floor;
+        }
+
+        private void add(long version, String label, boolean isBooked) {
+            if (size == versions.length) {
+                floor = versions[next];
+            } else {
+                size++;
+            }
+
+            versions[next] = version;
+            labels[next] = label;
+            booked[next] = isBooked;
+            next = (next + 1) % versions.length;
+        }
+
+        private Map<String, Boolean> after(long since) {
+            Map<String, Boolean> changed = new LinkedHashMap<>();
+
+            for (int i = 0; i < size; i++) {
+                int index = (next - size + i + versions.length) % versions.length;
+                if (versions[index] > since) {
+                    // a later change to the same seat replaces an earlier one
+                    changed.remove(labels[index]);
+                    changed.put(labels[index], booked[index]);
+                }
+            }
+
+            return changed;
+        }
+    }
+
+    /**
+     * The changes to the seats on a date since some version.
+     * version  the version the changes go up to, which the client should send next time
+     * resync   whether the client is too far behind, and has to fetch all the seats again
+     * booked   the seats which are now booked
+     * freed    the seats which are now free
+     */
+    public static class Changes {
+
+        private final long version;
+        private final boolean resync;
+        private final List<String> booked = new ArrayList<>();
+        private final List<String> freed = new ArrayList<>();
+
+        private Changes(long version, Map<String, Boolean> changed) {
+            this(version, false);
+            for (Map.Entry<String, Boolean> change : changed.entrySet()) {
+                (change.getValue() ? booked : freed).add(change.getKey());
+            }
+        }
+
+        private Changes(long version, boolean resync) {
+            this.version = version;
+            this.resync = resync;
+        }
+
+        private static Changes resync(long version) {
+            return new Changes(version, true);
+        }
+
+        public long getVersion() {
+            return version;
+        }
+
+        public boolean isResync() {
+            return resync;
+        }
+
+        public List<String> getBooked() {
+            return booked;
+        }
+
+        public List<String> getFreed() {
+            return freed;
+        }
+    }
+}
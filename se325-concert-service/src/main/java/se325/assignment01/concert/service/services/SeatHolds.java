@@ -0,0 +1,172 @@
+package se325.assignment01.concert.service.services;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se325.assignment01.concert.service.util.Config;
+import se325.assignment01.concert.service.util.HierarchicalTimerWheel;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Singleton class that keeps track of seats which are held for users while they check out. A hold claims its seats
+ * in the {@link SeatInventory}, so nobody else can book them, but nothing is written to the database until the hold
+ * is confirmed. Holds which aren't confirmed in time are expired by a timer wheel, which gives their seats back.
+ */
+public class SeatHolds {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SeatHolds.class);
+
+    private static final SeatHolds INSTANCE = new SeatHolds();
+
+    private final ConcurrentHashMap<String, Hold> holds = new ConcurrentHashMap<>();
+    private final HierarchicalTimerWheel expiryWheel = new HierarchicalTimerWheel("seat-hold-expiry", Config.HOLD_TICK_MILLIS);
+
+    protected SeatHolds() {
+    }
+
+    public static SeatHolds instance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Holds the given seats for a number of seconds.
+     *
+     * @param owner     identifies the user holding the seats
+     * @param concertId the id of the concert
+     * @param date      the date of the performance
+     * @param labels    the labels of the seats to hold
+     * @param seconds   how long to hold the seats for
+     * @return the hold, or null if any of the seats are unknown, booked or already held
+     */
+    public Hold hold(String owner, long concertId, LocalDateTime date, List<String> labels, int seconds) {
+
+        SeatInventory.Claim claim = SeatInventory.instance().claim(concertId, date, labels);
+
+        if (claim == null) {
+            return null;
+        }
+
+        Hold hold = new Hold(UUID.randomUUID().toString(), owner, concertId, date, new ArrayList<>(labels), claim,
+                LocalDateTime.now().plusSeconds(seconds));
+
+        holds.put(hold.id, hold);
+        hold.timeout = expiryWheel.schedule(() -> expire(hold), seconds * 1000L);
+
+        LOGGER.info("Holding " + labels.size() + " seats for " + seconds + " seconds");
+
+        return hold;
+    }
+
+    public Hold get(String id) {
+        return holds.get(id);
+    }
+
+    /**
+     * Takes the hold away so that it can be confirmed. The seats stay claimed, and now belong to the caller.
+     *
+     * @param hold the hold to take
+     * @return true if the hold was taken, false if it has already expired, been released or been confirmed
+     */
+    public boolean take(Hold hold) {
+        if (!holds.remove(hold.id, hold)) {
+            return false;
+        }
+
+        // the timeout is set just after the hold is added, if it isn't there yet then expiring will find nothing
+        HierarchicalTimerWheel.Timeout timeout = hold.timeout;
+        if (timeout != null) {
+            timeout.cancel();
+        }
+        return true;
+    }
+
+    /**
+     * Gives the seats of the hold back.
+     *
+     * @param hold the hold to release
+     * @return true if the hold was released, false if it has already expired, been released or been confirmed
+     */
+    public boolean release(Hold hold) {
+        if (!take(hold)) {
+            return false;
+        }
+
+        hold.claim.release();
+        return true;
+    }
+
+    /**
+     * Forgets every hold without releasing its seats. Must be called whenever the database is reset, along with
+     * {@link SeatInventory#clear()}.
+     */
+    public void clear() {
+        for (Hold hold : holds.values()) {
+            take(hold);
+        }
+    }
+
+    private void expire(Hold hold) {
+        if (holds.remove(hold.id, hold)) {
+            hold.claim.release();
+            LOGGER.info("Hold " + hold.id + " expired");
+        }
+    }
+
+    /**
+     * Seats which are being held for a user.
+     */
+    public static class Hold {
+
+        private final String id;
+        private final String owner;
+        private final long concertId;
+        private final LocalDateTime date;
+        private final List<String> labels;
+        private final SeatInventory.Claim claim;
+        private final LocalDateTime expiry;
+        private volatile HierarchicalTimerWheel.Timeout timeout;
+
+        private Hold(String id, String owner, long concertId, LocalDateTime date, List<String> labels,
+                     SeatInventory.Claim claim, LocalDateTime expiry) {
+            this.id = id;
+            this.owner = owner;
+            this.concertId = concertId;
+            this.date = date;
+            this.labels = labels;
+            this.claim = claim;
+            this.expiry = expiry;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getOwner() {
+            return owner;
+        }
+
+        public long getConcertId() {
+            return concertId;
+        }
+
+        public LocalDateTime getDate() {
+            return date;
+        }
+
+        public List<String> getLabels() {
+            return labels;
+        }
+
+        public SeatInventory.Claim getClaim() {
+            return claim;
+        }
+
+        public LocalDateTime getExpiry() {
+            return expiry;
+        }
+    }
+}
@@ -0,0 +1,218 @@
+package se325.assignment01.concert.service.services;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se325.assignment01.concert.service.domain.Concert;
+import se325.assignment01.concert.service.util.ConcertDateKey;
+import se325.assignment01.concert.service.util.Config;
+import se325.assignment01.concert.service.util.SeatBitmap;
+import se325.assignment01.concert.service.util.TheatreLayout;
+
+import javax.persistence.EntityManager;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static se325.assignment01.concert.service.util.TheatreLayout.NUM_SEATS_PER_ROW;
+
+/**
+ * Singleton class that keeps an in-memory record of which seats have been claimed for every concert date. Bookings
+ * claim their seats here before anything is written to the database, so conflicting bookings are turned away without
+ * waiting on database locks. Only the booking that wins the claim goes on to persist its seats.
+ * <p>
+ * The bitmap for a concert date is loaded from the database the first time it is used, which also checks that the
+ * concert exists and runs on that date. Concert dates that don't exist are remembered too, up to a limit, so that
+ * turning them away doesn't go to the database either.
+ */
+public class SeatInventory {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SeatInventory.class);
+
+    private static final SeatInventory INSTANCE = new SeatInventory();
+
+    // stands in for the bitmap of a concert date that doesn't exist
+    private static final SeatBitmap MISSING = new SeatBitmap();
+
+    private final ConcurrentHashMap<ConcertDateKey, SeatBitmap> bitmaps = new ConcurrentHashMap<>();
+    private final AtomicInteger numMissing = new AtomicInteger();
+
+    protected SeatInventory() {
+    }
+
+    public static SeatInventory instance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Checks whether the concert exists and runs on the given date.
+     *
+     * @param concertId the id of the concert
+     * @param date      the date of the performance
+     * @return true if there are seats for the concert on that date
+     */
+    public boolean exists(long concertId, LocalDateTime date) {
+        return bitmapFor(new ConcertDateKey(concertId, date)) != null;
+    }
+
+    /**
+     * Attempts to claim all of the given seats for a concert date. Either every seat is claimed, or none are.
+     *
+     * @param concertId the id of the concert
+     * @param date      the date of the performance
+     * @param labels    the labels of the seats to claim
+     * @return the claim, or null if any of the seats are unknown or have already been claimed
+     */
+    public Claim claim(long concertId, LocalDateTime date, List<String> labels) {
+        ConcertDateKey key = new ConcertDateKey(concertId, date);
+        SeatBitmap bitmap = bitmapFor(key);
+        long[] mask = SeatBitmap.maskOf(labels);
+
+        if (bitmap == null || mask == null || !bitmap.tryClaim(mask)) {
+            return null;
+        }
+
+        return new Claim(bitmap, mask);
+    }
+
+    /**
+     * Claims the best block of seats next to each other in the same row. Rows nearer the front are better, and within
+     * a row, blocks nearer the middle are better.
+     *
+     * @param concertId the id of the concert
+     * @param date      the date of the performance
+     * @param numSeats  the number of seats to claim
+     * @param firstRow  the first row to look in, starting from 0
+     * @param numRows   the number of rows to look in
+     * @return the claim, or null if there isn't a free block that big in any of the rows
+     */
+    public Claim claimBest(long concertId, LocalDateTime date, int numSeats, int firstRow, int numRows) {
+        SeatBitmap bitmap = bitmapFor(new ConcertDateKey(concertId, date));
+
+        if (bitmap == null || numSeats < 1 || numSeats > NUM_SEATS_PER_ROW) {
+            return null;
+        }
+
+        int blockMask = (1 << numSeats) - 1;
+
+        for (int row = firstRow; row < firstRow + numRows; row++) {
+
+            // another booking can take seats in the row while we are looking, in which case look at the row again
+            while (true) {
+                int claimed = bitmap.rowBits(row);
+                int bestSeat = -1;
+                int bestDistance = Integer.MAX_VALUE;
+
+                for (int seat = 0; seat + numSeats <= NUM_SEATS_PER_ROW; seat++) {
+                    // distance between the middle of the block and the middle of the row, doubled to keep it whole
+                    int distance = Math.abs(2 * seat + numSeats - NUM_SEATS_PER_ROW);
+                    if ((claimed & (blockMask << seat)) == 0 && distance < bestDistance) {
+                        bestSeat = seat;
+                        bestDistance = distance;
+                    }
+                }
+
+                if (bestSeat < 0) {
+                    break;
+                }
+
+                long[] mask = SeatBitmap.maskOfRun(row, bestSeat, numSeats);
+                if (bitmap.tryClaim(mask)) {
+                    return new Claim(bitmap, mask);
+                }
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Gives back seats that were booked and have since been freed in the database. Nothing needs to be done for a
+     * concert date that hasn't been loaded yet, as the freed seats will be read from the database when it is.
+     *
+     * @param concertId the id of the concert
+     * @param date      the date of the performance
+     * @param labels    the labels of the freed seats
+     */
+    public void release(long concertId, LocalDateTime date, List<String> labels) {
+        SeatBitmap bitmap = bitmaps.get(new ConcertDateKey(concertId, date));
+        long[] mask = SeatBitmap.maskOf(labels);
+
+        if (bitmap != null && bitmap != MISSING && mask != null) {
+            bitmap.release(mask);
+        }
+    }
+
+    /**
+     * Forgets everything held in memory, so that each concert date is reloaded from the database the next time it is
+     * used. Must be called whenever the database is reset.
+     */
+    public void clear() {
+        bitmaps.clear();
+        numMissing.set(0);
+    }
+
+    private SeatBitmap bitmapFor(ConcertDateKey key) {
+        SeatBitmap bitmap = bitmaps.computeIfAbsent(key, this::load);
+        return bitmap == MISSING ? null : bitmap;
+    }
+
+    private SeatBitmap load(ConcertDateKey key) {
+
+        EntityManager em = PersistenceManager.instance().createReadOnlyEntityManager();
+
+        try {
+            em.getTransaction().begin();
+
+            Concert concert = em.find(Concert.class, key.getConcertId());
+
+            // once enough concert dates that don't exist are remembered, the rest are looked up every time
+            if (concert == null || !concert.getDates().contains(key.getDate())) {
+                return numMissing.incrementAndGet() <= Config.SEAT_INVENTORY_MAX_MISSING ? MISSING : null;
+            }
+
+            List<String> bookedLabels = em.createQuery("select s.label from Seat s where s.date = :date and s.isBooked = true", String.class)
+                    .setParameter("date", key.getDate())
+                    .getResultList();
+
+            em.getTransaction().commit();
+
+            SeatBitmap bitmap = new SeatBitmap();
+            for (String label : bookedLabels) {
+                bitmap.set(TheatreLayout.seatIndex(label));
+            }
+
+            LOGGER.info("Loaded seat inventory for " + key + " with " + bookedLabels.size() + " booked seats");
+
+            return bitmap;
+        } finally {
+            if (em.getTransaction().isActive()) {
+                em.getTransaction().rollback();
+            }
+            em.close();
+        }
+    }
+
+    /**
+     * A set of seats that has been claimed in the inventory. The claim must be released if the seats end up not being
+     * booked.
+     */
+    public static class Claim {
+
+        private final SeatBitmap bitmap;
+        private final long[] mask;
+
+        private Claim(SeatBitmap bitmap, long[] mask) {
+            this.bitmap = bitmap;
+            this.mask = mask;
+        }
+
+        public List<String> getLabels() {
+            return SeatBitmap.labelsOf(mask);
+        }
+
+        public void release() {
+            bitmap.release(mask);
+        }
+    }
+}
@@ -0,0 +1,286 @@
+package se325.assignment01.concert.service.services;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se325.assignment01.concert.common.dto.SeatChangesDTO;
+import se325.assignment01.concert.service.util.Config;
+
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.sse.OutboundSseEvent;
+import javax.ws.rs.sse.Sse;
+import javax.ws.rs.sse.SseEventSink;
+import java.time.LocalDateTime;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Singleton class that streams seat changes to everyone watching the seats on a date, as server-sent events.
+ * <p>
+ * Each change is encoded once, and then queued for every viewer. The queues are sent from a small pool of threads,
+ * so a viewer never holds up the booking that made the change. The threads don't wait for an event to be sent, but
+ * send the next one when it has been, so a slow viewer doesn't hold up the others either. A viewer which falls so far
+ * behind that its queue fills up, or doesn't take an event in time, is disconnected, and can pick up where it left
+ * off by reconnecting with the id of the last event it got.
+ */
+public class SeatStreams {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SeatStreams.class);
+
+    private static final SeatStreams INSTANCE = new SeatStreams();
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    /**
+     * The name of the events which give the seats that have been booked and freed.
+     */
+    public static final String SEATS_EVENT = "seats";
+
+    /**
+     * The name of the event which tells a viewer that it missed too much, and has to fetch all the seats again.
+     */
+    public static final String RESYNC_EVENT = "resync";
+
+    private final ConcurrentHashMap<LocalDateTime, Set<Viewer>> viewers = new ConcurrentHashMap<>();
+
+    private final ExecutorService senders = Executors.newFixedThreadPool(Config.SEAT_STREAM_THREADS, r -> {
+        Thread thread = new Thread(r, "seat-streams");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private volatile Sse sse;
+
+    protected SeatStreams() {
+    }
+
+    public static SeatStreams instance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Starts streaming the changes to the seats on a date. If the viewer says which change it has seen up to, it is
+     * first sent everything it has missed since, or told to resync if that is no longer known.
+     *
+     * @param date  the date of the seats
+     * @param since the version of the last change the viewer has seen, or null to only stream new changes
+     * @param sink  the stream to the viewer
+     * @param sse   used to make events
+     */
+    public void open(LocalDateTime date, Long since, SseEventSink sink, Sse sse) {
+        this.sse = sse;
+
+        Viewer viewer = new Viewer(date, sink);
+        viewers.computeIfAbsent(date, d -> ConcurrentHashMap.newKeySet()).add(viewer);
+
+        // changes from here on are queued, and the ones before are caught up on now
+        if (since != null) {
+            SeatChangeLog.Changes changes = SeatChangeLog.instance().since(date, since);
+            viewer.floor = changes.getVersion();
+            viewer.catchUp = event(changes.isResync() ? RESYNC_EVENT : SEATS_EVENT, changes.getVersion(),
+                    changes.isResync(), changes.getBooked(), changes.getFreed());
+        } else {
+            // sends the response headers straight away, rather than with the first change
+            viewer.catchUp = sse.newEventBuilder().comment("watching seats on " + date).build();
+        }
+
+        // the viewer was made already sending, so that nothing is sent before the catch up is ready
+        senders.execute(() -> send(viewer));
+    }
+
+    /**
+     * Queues a change to the seats on a date for everyone watching them. Must be called in version order for each
+     * date.
+     *
+     * @param date    the date of the seats
+     * @param version the version of the change
+     * @param labels  the labels of the seats that changed
+     * @param booked  whether the seats were booked, or freed
+     */
+    public void publish(LocalDateTime date, long version, List<String> labels, boolean booked) {
+        Set<Viewer> watching = viewers.get(date);
+
+        if (watching == null || watching.isEmpty() || sse == null) {
+            return;
+        }
+
+        OutboundSseEvent event = booked
+                ? event(SEATS_EVENT, version, false, labels, Collections.emptyList())
+                : event(SEATS_EVENT, version, false, Collections.emptyList(), labels);
+
+        // the caller is holding up bookings, so a viewer which has fallen behind is left for a sender to disconnect
+        for (Viewer viewer : watching) {
+            if (!viewer.queue.offer(new Change(version, event))) {
+                viewer.behind = true;
+            }
+            schedule(viewer);
+        }
+    }
+
+    /**
+     * Disconnects everyone. Must be called whenever the database is reset, as their seats are no longer right.
+     */
+    public void clear() {
+        for (Set<Viewer> watching : viewers.values()) {
+            for (Viewer viewer : watching) {
+                close(viewer);
+            }
+        }
+        viewers.clear();
+    }
+
+    private OutboundSseEvent event(String name, long version, boolean resync, List<String> booked, List<String> freed) {
+        String data;
+        try {
+            data = MAPPER.writeValueAsString(new SeatChangesDTO(version, resync, booked, freed));
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException(e);
+        }
+
+        return sse.newEventBuilder()
+                .name(name)
+                .id(Long.toString(version))
+                .mediaType(MediaType.APPLICATION_JSON_TYPE)
+                .data(data)
+                .build();
+    }
+
+    private void schedule(Viewer viewer) {
+        if (viewer.sending.compareAndSet(false, true)) {
+            senders.execute(() -> send(viewer));
+        }
+    }
+
+    /**
+     * sends the next event queued for a viewer, and carries on with the one after once it has been sent. Only one
+     * event is being sent to a viewer at a time.
+     */
+    private void send(Viewer viewer) {
+        OutboundSseEvent event = next(viewer);
+        if (event == null) {
+            return;
+        }
+
+        CompletableFuture<?> sent;
+        try {
+            sent = viewer.sink.send(event).toCompletableFuture();
+        } catch (RuntimeException e) {
+            lost(viewer, e);
+            return;
+        }
+
+        sent.orTimeout(Config.SEAT_STREAM_SEND_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS).whenComplete((r, t) -> {
+            if (t == null) {
+                senders.execute(() -> send(viewer));
+            } else {
+                // on whichever thread found out, so that disconnecting a stuck viewer doesn't wait for a sender
+                lost(viewer, t);
+            }
+        });
+    }
+
+    /**
+     * gets the next event to send to a viewer. Returns null if there is nothing to send, in which case the viewer is
+     * no longer sending, or if the viewer has been disconnected.
+     */
+    private OutboundSseEvent next(Viewer viewer) {
+        while (true) {
+            if (viewer.behind) {
+                LOGGER.info("Disconnecting a viewer of the seats on " + viewer.date + " which has fallen behind");
+                close(viewer);
+                return null;
+            }
+
+            if (viewer.sink.isClosed()) {
+                close(viewer);
+                return null;
+            }
+
+            OutboundSseEvent catchUp = viewer.catchUp;
+            if (catchUp != null) {
+                viewer.catchUp = null;
+                return catchUp;
+            }
+
+            Change change = viewer.queue.poll();
+            if (change == null) {
+                viewer.sending.set(false);
+
+                // something may have been queued after the poll but before sending was cleared
+                if (viewer.queue.isEmpty() || !viewer.sending.compareAndSet(false, true)) {
+                    return null;
+                }
+                continue;
+            }
+
+            // the catch up already included this change
+            if (change.version <= viewer.floor) {
+                continue;
+            }
+
+            return change.event;
+        }
+    }
+
+    private void lost(Viewer viewer, Throwable t) {
+        LOGGER.info("Lost a viewer of the seats on " + viewer.date + ": " + t);
+        close(viewer);
+    }
+
+    private void close(Viewer viewer) {
+        Set<Viewer> watching = viewers.get(viewer.date);
+        if (watching != null) {
+            watching.remove(viewer);
+        }
+
+        viewer.queue.clear();
+        try {
+            viewer.sink.close();
+        } catch (RuntimeException e) {
+            // it's gone either way
+        }
+    }
+
+    /**
+     * Someone watching the seats on a date, and the changes which are waiting to be sent to them.
+     */
+    private static class Viewer {
+
+        private final LocalDateTime date;
+        private final SseEventSink sink;
+        private final ArrayBlockingQueue<Change> queue = new ArrayBlockingQueue<>(Config.SEAT_STREAM_BUFFER);
+        private final AtomicBoolean sending = new AtomicBoolean(true);
+
+        // the first event to send, and the version it brings the viewer up to
+        private volatile OutboundSseEvent catchUp;
+        private volatile long floor = Long.MIN_VALUE;
+
+        // set when the queue overflows, and the viewer is disconnected by its sender
+        private volatile boolean behind = false;
+
+        private Viewer(LocalDateTime date, SseEventSink sink) {
+            this.date = date;
+            this.sink = sink;
+        }
+    }
+
+    private static class Change {
+
+        private final long version;
+        private final OutboundSseEvent event;
+
+        private Change(long version, OutboundSseEvent event) {
+            this.version = version;
+            this.event = event;
+        }
+    }
+}
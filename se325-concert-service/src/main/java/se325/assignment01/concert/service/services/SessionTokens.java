@@ -0,0 +1,181 @@
+package se325.assignment01.concert.service.services;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se325.assignment01.concert.service.domain.User;
+import se325.assignment01.concert.service.util.Config;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Singleton class that issues and checks the tokens which the auth cookie holds. A token says who the user is and
+ * when it expires, and is signed with HMAC-SHA256, so it can be checked from the token alone, without storing
+ * anything or going to the database. Any service that has the same keys can check the tokens the others issue.
+ * <p>
+ * Tokens look like {@code <key id>.<payload>.<signature>}, where the payload is the user's id, the time the token
+ * was issued and the time it expires. New tokens are signed with the first key, and tokens signed with any of the
+ * keys are accepted, so a key can be rotated out by putting a new key first and then dropping the old key once the
+ * tokens it signed have expired.
+ */
+public class SessionTokens {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SessionTokens.class);
+
+    private static final SessionTokens INSTANCE = new SessionTokens();
+
+    private static final String ALGORITHM = "HmacSHA256";
+
+    private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+    private static final Base64.Decoder DECODER = Base64.getUrlDecoder();
+
+    // in the order they were configured, so the first is the one that signs
+    private final Map<String, Key> keys = new LinkedHashMap<>();
+    private final Key signingKey;
+
+    protected SessionTokens() {
+        for (String key : Config.SESSION_KEYS.split(",")) {
+            if (!key.trim().isEmpty()) {
+                String[] parts = key.trim().split(":", 2);
+                keys.put(parts[0], new Key(parts[0], Base64.getDecoder().decode(parts[1])));
+            }
+        }
+
+        // without any keys, the tokens can only be checked by this service, and only until it restarts
+        if (keys.isEmpty()) {
+            LOGGER.info("No session keys are configured, so a key has been made up for this service alone");
+
+            byte[] secret = new byte[32];
+            new SecureRandom().nextBytes(secret);
+            keys.put("local", new Key("local", secret));
+        }
+
+        this.signingKey = keys.values().iterator().next();
+    }
+
+    public static SessionTokens instance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Issues a token for a user who has just logged in.
+     *
+     * @param user the user
+     * @return the token, which lasts for the session time to live
+     */
+    public String issue(User user) {
+        long issuedAt = System.currentTimeMillis() / 1000;
+        long expiresAt = issuedAt + Config.SESSION_TTL_SECONDS;
+
+        String payload = ENCODER.encodeToString((user.getId() + ":" + issuedAt + ":" + expiresAt).getBytes(StandardCharsets.UTF_8));
+        String signed = signingKey.id + "." + payload;
+
+        return signed + "." + ENCODER.encodeToString(signingKey.sign(signed));
+    }
+
+    /**
+     * Checks a token, and gets the session it is for.
+     *
+     * @param token the value of the auth cookie
+     * @return the session, or null if the token isn't one of ours or has expired
+     */
+    public Session verify(String token) {
+        try {
+            int firstDot = token.indexOf('.');
+            int lastDot = token.lastIndexOf('.');
+            if (firstDot < 0 || lastDot == firstDot) {
+                return null;
+            }
+
+            Key key = keys.get(token.substring(0, firstDot));
+            if (key == null) {
+                return null;
+            }
+
+            String signed = token.substring(0, lastDot);
+            byte[] signature = DECODER.decode(token.substring(lastDot + 1));
+
+            // compared in constant time, so that the signature can't be guessed a byte at a time
+            if (!MessageDigest.isEqual(key.sign(signed), signature)) {
+                return null;
+            }
+
+            String[] payload = new String(DECODER.decode(signed.substring(firstDot + 1)), StandardCharsets.UTF_8).split(":");
+            long expiresAt = Long.parseLong(payload[2]);
+
+            if (System.currentTimeMillis() / 1000 >= expiresAt) {
+                return null;
+            }
+
+            return new Session(Long.parseLong(payload[0]), expiresAt);
+
+        } catch (RuntimeException e) {
+            // not a token at all
+            return null;
+        }
+    }
+
+    /**
+     * A key that signs tokens. Macs aren't thread safe, so each thread has its own.
+     */
+    private static class Key {
+
+        private final String id;
+        private final ThreadLocal<Mac> mac;
+
+        private Key(String id, byte[] secret) {
+            this.id = id;
+            this.mac = ThreadLocal.withInitial(() -> {
+                try {
+                    Mac mac = Mac.getInstance(ALGORITHM);
+                    mac.init(new SecretKeySpec(secret, ALGORITHM));
+                    return mac;
+                } catch (GeneralSecurityException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+        }
+
+        private byte[] sign(String signed) {
+            return mac.get().doFinal(signed.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * A logged in user, as given by their token.
+     * userId     the id of the user
+     * expiresAt  when the token expires, in seconds since the epoch
+     */
+    public static class Session {
+
+        private final long userId;
+        private final long expiresAt;
+
+        private Session(long userId, long expiresAt) {
+            this.userId = userId;
+            this.expiresAt = expiresAt;
+        }
+
+        public long getUserId() {
+            return userId;
+        }
+
+        /**
+         * Gets what the user's bookings, holds and subscriptions belong to.
+         */
+        public String getOwner() {
+            return Long.toString(userId);
+        }
+
+        public long getExpiresAt() {
+            return expiresAt;
+        }
+    }
+}
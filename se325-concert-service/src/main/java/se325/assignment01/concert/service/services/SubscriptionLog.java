@@ -0,0 +1,302 @@
+package se325.assignment01.concert.service.services;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se325.assignment01.concert.service.util.Config;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Singleton class that writes subscriptions to a file, so that they outlive the service. Each subscription is
+ * written when it is made, when its percentage is reached and when it is delivered or given up on, always by
+ * appending a line to the end of the file.
+ * <p>
+ * The file is only ever read from start to end, once, when the service starts. It is rewritten with just the
+ * subscriptions which are still open whenever enough lines have been appended since it was last rewritten, so it
+ * doesn't keep growing.
+ */
+public class SubscriptionLog {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SubscriptionLog.class);
+
+    private static final SubscriptionLog INSTANCE = new SubscriptionLog();
+
+    private static final String REGISTERED = "R";
+    private static final String FIRED = "F";
+    private static final String DELIVERED = "D";
+    private static final String CANCELLED = "C";
+
+    private final Path path;
+
+    // the subscriptions which are still open, as they would be read back from the file
+    private final Map<String, Record> open = new LinkedHashMap<>();
+
+    private Writer out;
+    private int appended;
+
+    protected SubscriptionLog() {
+        this(Paths.get(Config.SUBSCRIPTION_LOG_FILE));
+    }
+
+    /**
+     * Creates a log which writes to the given file rather than the configured one.
+     */
+    protected SubscriptionLog(Path path) {
+        this.path = path;
+    }
+
+    public static SubscriptionLog instance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Reads the subscriptions which were still open when the service last stopped. Must be called once, before
+     * anything is written.
+     *
+     * @return the open subscriptions, by key
+     */
+    public synchronized Map<String, Record> replay() {
+        open.clear();
+        int lines = 0;
+
+        try (BufferedReader in = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                lines++;
+                apply(line);
+            }
+        } catch (NoSuchFileException e) {
+            // nothing has been written yet
+        } catch (IOException e) {
+            LOGGER.info("Couldn't read all of the subscription log: " + e.getMessage());
+        }
+
+        // subscriptions which timed out while the service was stopped can't be come back to
+        long expired = System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(Config.SUBSCRIPTION_TIMEOUT_SECONDS);
+        open.values().removeIf(record -> record.registeredAt < expired);
+
+        LOGGER.info("Replayed " + lines + " lines of the subscription log, leaving " + open.size() + " open subscriptions");
+
+        // starts the file afresh, which also drops anything half written when the service stopped
+        compact();
+
+        // records are never changed, only replaced, so they can be handed out as they are
+        return new LinkedHashMap<>(open);
+    }
+
+    /**
+     * Writes that a subscription has been made. A subscription with the same key as an earlier one replaces it.
+     */
+    public synchronized void registered(Record record) {
+        append(String.join("\t", REGISTERED, encode(record.key), Long.toString(record.concertId),
+                record.date.toString(), Integer.toString(record.percentageBooked), Long.toString(record.registeredAt)));
+    }
+
+    /**
+     * Writes that the percentage of a subscription has been reached, and the number of seats that were left, so
+     * that the notification can still be delivered if the subscriber isn't there to get it.
+     */
+    public synchronized void fired(String key, int availableSeats) {
+        append(String.join("\t", FIRED, encode(key), Integer.toString(availableSeats)));
+    }
+
+    /**
+     * Writes that a subscription has been notified, and is finished with.
+     */
+    public synchronized void delivered(String key) {
+        append(String.join("\t", DELIVERED, encode(key)));
+    }
+
+    /**
+     * Writes that a subscription was given up on before it was notified.
+     */
+    public synchronized void cancelled(String key) {
+        append(String.join("\t", CANCELLED, encode(key)));
+    }
+
+    /**
+     * Forgets every subscription. Must be called whenever the database is reset.
+     */
+    public synchronized void clear() {
+        open.clear();
+        compact();
+    }
+
+    private void append(String line) {
+        if (!apply(line)) {
+            return;
+        }
+
+        try {
+            if (out == null) {
+                out = Files.newBufferedWriter(path, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            }
+            out.write(line);
+            out.write('\n');
+            out.flush();
+        } catch (IOException e) {
+            LOGGER.info("Couldn't write to the subscription log: " + e.getMessage());
+        }
+
+        if (++appended > Math.max(Config.SUBSCRIPTION_LOG_COMPACT_LINES, 2 * open.size())) {
+            compact();
+        }
+    }
+
+    /**
+     * applies a line to the open subscriptions, and returns whether it made any difference. Lines which can't be
+     * read, e.g. because the service stopped while writing them, are skipped.
+     */
+    private boolean apply(String line) {
+        String[] fields = line.split("\t");
+
+        try {
+            String key = decode(fields[1]);
+
+            switch (fields[0]) {
+                case REGISTERED:
+                    open.put(key, new Record(key, Long.parseLong(fields[2]), LocalDateTime.parse(fields[3]),
+                            Integer.parseInt(fields[4]), Long.parseLong(fields[5]), null));
+                    return true;
+                case FIRED:
+                    Record record = open.get(key);
+                    if (record == null) {
+                        return false;
+                    }
+                    open.put(key, new Record(key, record.concertId, record.date, record.percentageBooked,
+                            record.registeredAt, Integer.parseInt(fields[2])));
+                    return true;
+                case DELIVERED:
+                case CANCELLED:
+                    return open.remove(key) != null;
+                default:
+                    return false;
+            }
+        } catch (RuntimeException e) {
+            return false;
+        }
+    }
+
+    /**
+     * rewrites the file with just the open subscriptions. The new file is written next to the old one and then moved
+     * over it, so there is always a whole file to replay.
+     */
+    private void compact() {
+        Path compacted = path.resolveSibling(path.getFileName() + ".compact");
+
+        try {
+            if (out != null) {
+                out.close();
+                out = null;
+            }
+
+            if (path.getParent() != null) {
+                Files.createDirectories(path.getParent());
+            }
+
+            try (BufferedWriter writer = Files.newBufferedWriter(compacted, StandardCharsets.UTF_8)) {
+                for (Record record : open.values()) {
+                    writer.write(String.join("\t", REGISTERED, encode(record.key), Long.toString(record.concertId),
+                            record.date.toString(), Integer.toString(record.percentageBooked), Long.toString(record.registeredAt)));
+                    writer.write('\n');
+
+                    if (record.availableSeats != null) {
+                        writer.write(String.join("\t", FIRED, encode(record.key), Integer.toString(record.availableSeats)));
+                        writer.write('\n');
+                    }
+                }
+            }
+
+            Files.move(compacted, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            appended = 0;
+        } catch (IOException e) {
+            LOGGER.info("Couldn't compact the subscription log: " + e.getMessage());
+        }
+    }
+
+    private static String encode(String value) {
+        try {
+            return URLEncoder.encode(value, StandardCharsets.UTF_8.name());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static String decode(String value) {
+        try {
+            return URLDecoder.decode(value, StandardCharsets.UTF_8.name());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * A subscription as it is written to the log.
+     * key              who made the subscription and the id they gave it
+     * concertId        the id of the concert
+     * date             the date of the performance
+     * percentageBooked the percentage the subscriber wants to be notified at
+     * registeredAt     when the subscription was made, in milliseconds since the epoch
+     * availableSeats   the number of seats left when the percentage was reached, or null if it hasn't been
+     */
+    public static class Record {
+
+        private final String key;
+        private final long concertId;
+        private final LocalDateTime date;
+        private final int percentageBooked;
+        private final long registeredAt;
+        private final Integer availableSeats;
+
+        public Record(String key, long concertId, LocalDateTime date, int percentageBooked, long registeredAt,
+                      Integer availableSeats) {
+            this.key = key;
+            this.concertId = concertId;
+            this.date = date;
+            this.percentageBooked = percentageBooked;
+            this.registeredAt = registeredAt;
+            this.availableSeats = availableSeats;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public long getConcertId() {
+            return concertId;
+        }
+
+        public LocalDateTime getDate() {
+            return date;
+        }
+
+        public int getPercentageBooked() {
+            return percentageBooked;
+        }
+
+        public long getRegisteredAt() {
+            return registeredAt;
+        }
+
+        public Integer getAvailableSeats() {
+            return availableSeats;
+        }
+    }
+}
@@ -0,0 +1,435 @@
+package se325.assignment01.concert.service.services;
+
+import se325.assignment01.concert.common.dto.ConcertInfoNotificationDTO;
+import se325.assignment01.concert.service.domain.SubscriptionInfo;
+import se325.assignment01.concert.service.util.ConcertDateKey;
+import se325.assignment01.concert.service.util.Config;
+import se325.assignment01.concert.service.util.HierarchicalTimerWheel;
+import se325.assignment01.concert.service.util.Metrics;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.CompletionCallback;
+import javax.ws.rs.core.Response;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Singleton class that holds the subscriptions to each concert date, ordered by the percentage of seats that has to
+ * be booked before each subscriber is notified. When seats are booked, only the subscribers whose percentage has been
+ * reached are looked at, rather than every subscriber to the date.
+ * <p>
+ * Subscriptions don't last forever. Each one times out if its percentage isn't reached in time, and is removed as
+ * soon as its response is finished. The container doesn't say when a subscriber goes away, so the subscriptions are
+ * also swept now and then for responses which have been cancelled or are past their timeout. The number of
+ * subscriptions is capped for each user and in total, so the memory they take up is bounded.
+ * <p>
+ * A subscriber can give their subscription an id, in which case it is also written to the {@link SubscriptionLog}.
+ * If they lose their connection, or the service restarts, before they are notified, they can come back to the
+ * subscription by subscribing again with the same id, and are sent any notification they missed straight away.
+ */
+public class SubscriptionRegistry {
+
+    /**
+     * The header a subscriber sends to give their subscription an id, which is sent back with the notification.
+     */
+    public static final String SUBSCRIPTION_ID_HEADER = "Subscription-Id";
+
+    private static final SubscriptionRegistry INSTANCE = new SubscriptionRegistry();
+
+    // subscriptions with the same percentage are kept in the order they were made
+    private static final Comparator<Subscription> BY_PERCENTAGE = Comparator
+            .comparingInt((Subscription s) -> s.percentageBooked)
+            .thenComparingLong(s -> s.sequence);
+
+    private final ConcurrentHashMap<ConcertDateKey, NavigableSet<Subscription>> subscriptions = new ConcurrentHashMap<>();
+    private final AtomicLong sequence = new AtomicLong();
+
+    private final AtomicInteger live = new AtomicInteger();
+    private final ConcurrentHashMap<String, Integer> liveByOwner = new ConcurrentHashMap<>();
+
+    // the subscriptions with ids which are waiting to be notified, by key
+    private final ConcurrentHashMap<String, Subscription> byKey = new ConcurrentHashMap<>();
+
+    // the subscriptions with ids whose subscriber has gone, which they can come back to until they time out. Any
+    // subscription dropped from here is given up on in the log as well, or the log would keep it open for good
+    private final LinkedHashMap<String, SubscriptionLog.Record> detached = new LinkedHashMap<String, SubscriptionLog.Record>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, SubscriptionLog.Record> eldest) {
+            if (size() <= Config.SUBSCRIPTIONS_MAX) {
+                return false;
+            }
+            log.cancelled(eldest.getKey());
+            return true;
+        }
+    };
+
+    private final SubscriptionLog log;
+
+    private final HierarchicalTimerWheel sweepWheel = new HierarchicalTimerWheel("subscription-sweep", Config.SUBSCRIPTION_SWEEP_MILLIS);
+
+    protected SubscriptionRegistry() {
+        this(SubscriptionLog.instance());
+    }
+
+    /**
+     * Creates a registry which keeps its subscriptions in the given log. The log is replayed straight away, so each
+     * log should only be given to one registry.
+     */
+    protected SubscriptionRegistry(SubscriptionLog log) {
+        this.log = log;
+
+        Metrics.gauge("subscriptions.live", live::get);
+
+        // every subscriber had gone when the service stopped
+        detached.putAll(log.replay());
+
+        sweepWheel.schedule(this::sweep, Config.SUBSCRIPTION_SWEEP_MILLIS);
+    }
+
+    public static SubscriptionRegistry instance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Adds a subscription to a concert date, unless the user or the service already has as many subscriptions as
+     * allowed. The subscription times out with a 503 if it hasn't been notified within the subscription timeout.
+     * <p>
+     * If the subscription has the same id as an earlier one from the same user, the subscriber has come back to it.
+     * A notification they missed is sent straight away, and otherwise the earlier subscription is replaced.
+     *
+     * @param concertId    the id of the concert
+     * @param date         the date of the performance
+     * @param subscription the subscription, which says the percentage it wants to be notified at
+     * @return whether the subscriber came back to a subscription they had lost, in which case its percentage may
+     * have been reached while they were gone and should be checked now
+     * @throws WebApplicationException a 429 if the user has too many subscriptions, or a 503 if the service does
+     */
+    public boolean add(long concertId, LocalDateTime date, SubscriptionInfo subscription) {
+        String owner = subscription.getOwner();
+        String key = subscription.getId() == null ? null : key(owner, subscription.getId());
+
+        if (key != null) {
+            SubscriptionLog.Record earlier = detached(key);
+
+            if (earlier != null && earlier.getAvailableSeats() != null
+                    && earlier.getConcertId() == concertId && earlier.getDate().equals(date)) {
+                takeDetached(key);
+                subscription.getAsyncResponse().resume(notification(subscription, earlier.getAvailableSeats()));
+                log.delivered(key);
+                return false;
+            }
+        }
+
+        if (live.incrementAndGet() > Config.SUBSCRIPTIONS_MAX) {
+            live.decrementAndGet();
+            throw new WebApplicationException(Response.Status.SERVICE_UNAVAILABLE);
+        }
+
+        boolean[] allowed = {false};
+        liveByOwner.compute(owner, (o, n) -> {
+            int count = n == null ? 0 : n;
+            if (count >= Config.SUBSCRIPTIONS_PER_USER) {
+                return n;
+            }
+            allowed[0] = true;
+            return count + 1;
+        });
+
+        if (!allowed[0]) {
+            live.decrementAndGet();
+            throw new WebApplicationException(Response.Status.TOO_MANY_REQUESTS);
+        }
+
+        boolean cameBack = false;
+        long registeredAt = System.currentTimeMillis();
+
+        if (key != null) {
+            SubscriptionLog.Record earlier = takeDetached(key);
+            if (earlier != null && earlier.getConcertId() == concertId && earlier.getDate().equals(date)) {
+                cameBack = true;
+                registeredAt = earlier.getRegisteredAt();
+            }
+
+            // the subscriber has come back on another connection, so the one they had is no use to them
+            Subscription replaced = byKey.get(key);
+            if (replaced != null && remove(replaced)) {
+                replaced.info.getAsyncResponse().resume(Response.status(Response.Status.CONFLICT).build());
+            }
+        }
+
+        Subscription s = new Subscription(new ConcertDateKey(concertId, date), owner, key,
+                subscription.getSubInfo().getPercentageBooked(), sequence.incrementAndGet(), registeredAt, subscription);
+        AsyncResponse response = subscription.getAsyncResponse();
+
+        response.setTimeoutHandler(r -> {
+            if (remove(s)) {
+                cancelled(s);
+                r.resume(Response.status(Response.Status.SERVICE_UNAVAILABLE).build());
+            }
+        });
+        response.setTimeout(Math.max(1, Config.SUBSCRIPTION_TIMEOUT_SECONDS - (System.currentTimeMillis() - registeredAt) / 1000),
+                TimeUnit.SECONDS);
+
+        // however the response ends, the subscription goes with it, but the subscriber can come back to it. If the
+        // subscriber goes away, nothing is called back and the subscription is left for the sweep
+        response.register((CompletionCallback) t -> {
+            if (remove(s)) {
+                detach(s);
+            }
+        });
+
+        if (key != null) {
+            byKey.put(key, s);
+            log.registered(new SubscriptionLog.Record(key, concertId, date, s.percentageBooked, registeredAt, null));
+        }
+        subscriptions.computeIfAbsent(s.key, k -> new ConcurrentSkipListSet<>(BY_PERCENTAGE)).add(s);
+
+        // the response may have ended before the subscription was added, in which case nothing else will remove it
+        if (!response.isSuspended() && remove(s)) {
+            detach(s);
+        }
+
+        return cameBack;
+    }
+
+    /**
+     * Removes and returns the subscriptions to a concert date which have been reached. Each subscription is only ever
+     * returned once, even to concurrent callers.
+     *
+     * @param concertId        the id of the concert
+     * @param date             the date of the performance
+     * @param percentageBooked the percentage of seats that are now booked
+     * @param availableSeats   the number of seats that are left, which the subscriptions will be told
+     * @return the subscriptions which want to be notified at this percentage or lower
+     */
+    public List<SubscriptionInfo> reached(long concertId, LocalDateTime date, int percentageBooked, int availableSeats) {
+        List<SubscriptionInfo> reached = new ArrayList<>();
+        NavigableSet<Subscription> forDate = subscriptions.get(new ConcertDateKey(concertId, date));
+
+        if (forDate == null) {
+            return reached;
+        }
+
+        for (Subscription s : forDate.headSet(new Subscription(null, null, null, percentageBooked, Long.MAX_VALUE, 0, null), true)) {
+            // whoever removes the subscription is the one to notify it
+            if (remove(s)) {
+                if (s.logKey != null) {
+                    log.fired(s.logKey, availableSeats);
+                }
+                reached.add(s.info);
+            }
+        }
+
+        return reached;
+    }
+
+    /**
+     * Records that a subscriber has been sent their notification.
+     */
+    public void delivered(SubscriptionInfo subscription) {
+        if (subscription.getId() != null) {
+            log.delivered(key(subscription.getOwner(), subscription.getId()));
+        }
+    }
+
+    /**
+     * Records that a subscriber couldn't be sent their notification, so that they can come back for it.
+     */
+    public void undelivered(SubscriptionInfo subscription, int availableSeats) {
+        if (subscription.getId() == null) {
+            return;
+        }
+
+        String key = key(subscription.getOwner(), subscription.getId());
+        synchronized (detached) {
+            detached.put(key, new SubscriptionLog.Record(key, subscription.getSubInfo().getConcertId(),
+                    subscription.getSubInfo().getDate(), subscription.getSubInfo().getPercentageBooked(),
+                    System.currentTimeMillis(), availableSeats));
+        }
+    }
+
+    /**
+     * Makes the notification for a subscription.
+     */
+    public static Response notification(SubscriptionInfo subscription, int availableSeats) {
+        Response.ResponseBuilder builder = Response.ok(new ConcertInfoNotificationDTO(availableSeats));
+        if (subscription.getId() != null) {
+            builder.header(SUBSCRIPTION_ID_HEADER, subscription.getId());
+        }
+        return builder.build();
+    }
+
+    /**
+     * Gets the number of subscriptions which are waiting to be notified.
+     */
+    public int size() {
+        return live.get();
+    }
+
+    /**
+     * Ends every subscription with a 503. Must be called whenever the database is reset, as the concerts they are
+     * waiting on are no longer there.
+     */
+    public void clear() {
+        for (NavigableSet<Subscription> forDate : subscriptions.values()) {
+            for (Subscription s : forDate) {
+                if (remove(s)) {
+                    s.info.getAsyncResponse().resume(Response.status(Response.Status.SERVICE_UNAVAILABLE).build());
+                }
+            }
+        }
+
+        synchronized (detached) {
+            detached.clear();
+        }
+        log.clear();
+    }
+
+    /**
+     * Stops sweeping the subscriptions. The registry shouldn't be used afterwards.
+     */
+    public void shutdown() {
+        sweepWheel.shutdown();
+    }
+
+    /**
+     * removes the subscriptions whose subscriber has gone, or which are past their timeout without having timed out,
+     * and the subscriptions whose subscriber didn't come back in time, then sweeps again later.
+     */
+    private void sweep() {
+        try {
+            long expired = System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(Config.SUBSCRIPTION_TIMEOUT_SECONDS);
+
+            synchronized (detached) {
+                for (Iterator<SubscriptionLog.Record> it = detached.values().iterator(); it.hasNext(); ) {
+                    SubscriptionLog.Record record = it.next();
+                    if (record.getRegisteredAt() < expired) {
+                        it.remove();
+                        log.cancelled(record.getKey());
+                    }
+                }
+            }
+
+            for (NavigableSet<Subscription> forDate : subscriptions.values()) {
+                for (Subscription s : forDate) {
+                    AsyncResponse response = s.info.getAsyncResponse();
+
+                    if (response.isCancelled() || response.isDone()) {
+                        if (remove(s)) {
+                            detach(s);
+                        }
+                    } else if (s.registeredAt < expired && remove(s)) {
+                        cancelled(s);
+                        response.resume(Response.status(Response.Status.SERVICE_UNAVAILABLE).build());
+                    }
+                }
+            }
+        } finally {
+            sweepWheel.schedule(this::sweep, Config.SUBSCRIPTION_SWEEP_MILLIS);
+        }
+    }
+
+    /**
+     * removes a subscription, and returns whether it was still there. Only one caller can remove a subscription, and
+     * that caller frees its place under the caps.
+     */
+    private boolean remove(Subscription s) {
+        NavigableSet<Subscription> forDate = subscriptions.get(s.key);
+
+        if (forDate == null || !forDate.remove(s)) {
+            return false;
+        }
+
+        live.decrementAndGet();
+        liveByOwner.computeIfPresent(s.owner, (o, n) -> n <= 1 ? null : n - 1);
+        if (s.logKey != null) {
+            byKey.remove(s.logKey, s);
+        }
+        return true;
+    }
+
+    /**
+     * keeps a subscription whose subscriber has gone, so that they can come back to it.
+     */
+    private void detach(Subscription s) {
+        if (s.logKey == null) {
+            return;
+        }
+
+        synchronized (detached) {
+            detached.put(s.logKey, new SubscriptionLog.Record(s.logKey, s.key.getConcertId(), s.key.getDate(),
+                    s.percentageBooked, s.registeredAt, null));
+        }
+    }
+
+    private void cancelled(Subscription s) {
+        if (s.logKey != null) {
+            log.cancelled(s.logKey);
+        }
+    }
+
+    /**
+     * gets a subscription whose subscriber has gone, as long as it hasn't timed out.
+     */
+    private SubscriptionLog.Record detached(String key) {
+        synchronized (detached) {
+            SubscriptionLog.Record record = detached.get(key);
+
+            if (record != null && System.currentTimeMillis() - record.getRegisteredAt() > TimeUnit.SECONDS.toMillis(Config.SUBSCRIPTION_TIMEOUT_SECONDS)) {
+                detached.remove(key);
+                log.cancelled(key);
+                return null;
+            }
+            return record;
+        }
+    }
+
+    private SubscriptionLog.Record takeDetached(String key) {
+        synchronized (detached) {
+            SubscriptionLog.Record record = detached(key);
+            detached.remove(key);
+            return record;
+        }
+    }
+
+    /**
+     * ids are only unique to each user, so the key of a subscription includes who made it.
+     */
+    private static String key(String owner, String id) {
+        return owner + "/" + id;
+    }
+
+    private static class Subscription {
+
+        private final ConcertDateKey key;
+        private final String owner;
+        private final String logKey;
+        private final int percentageBooked;
+        private final long sequence;
+        private final long registeredAt;
+        private final SubscriptionInfo info;
+
+        private Subscription(ConcertDateKey key, String owner, String logKey, int percentageBooked, long sequence,
+                             long registeredAt, SubscriptionInfo info) {
+            this.key = key;
+            this.owner = owner;
+            this.logKey = logKey;
+            this.percentageBooked = percentageBooked;
+            this.sequence = sequence;
+            this.registeredAt = registeredAt;
+            this.info = info;
+        }
+    }
+}
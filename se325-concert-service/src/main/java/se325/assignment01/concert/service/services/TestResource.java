@@ -21,6 +21,15 @@ public class TestResource {
 
         PersistenceManager.instance().reset();
         ConcertUtils.initConcerts();
+        SeatHolds.instance().clear();
+        SeatInventory.instance().clear();
+        AvailabilityCounters.instance().rebuild();
+        WaitingRoom.instance().clear();
+        IdempotencyCache.instance().clear();
+        CatalogCache.instance().invalidate();
+        SeatChangeLog.instance().clear();
+        SeatStreams.instance().clear();
+        SubscriptionRegistry.instance().clear();
 
         return Response.noContent().build();
     }
@@ -0,0 +1,222 @@
+package se325.assignment01.concert.service.services;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se325.assignment01.concert.service.util.Config;
+import se325.assignment01.concert.service.util.HierarchicalTimerWheel;
+import se325.assignment01.concert.service.util.TokenBucket;
+
+import java.time.LocalDateTime;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Singleton class that queues up users for concert dates which are in high demand ("hot" dates), and lets them through
+ * to the booking and seat endpoints at a steady rate. Users are let through in the order that they joined the queue.
+ * <p>
+ * Each hot date has its own queue, which hands out numbered tickets. A token bucket decides how many more tickets are
+ * let through, and it is only topped up when someone asks. Once let through, a ticket stays valid for a limited time.
+ * <p>
+ * A ticket whose holder stops asking about it expires, whether or not it has been let through, so that people who
+ * give up don't fill the waiting room. Expired tickets are forgotten by a timer wheel.
+ */
+public class WaitingRoom {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(WaitingRoom.class);
+
+    private static final WaitingRoom INSTANCE = new WaitingRoom();
+
+    private final Set<LocalDateTime> hotDates;
+    private final ConcurrentHashMap<LocalDateTime, Line> lines = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Ticket> tickets = new ConcurrentHashMap<>();
+    private final AtomicInteger numTickets = new AtomicInteger();
+    private final HierarchicalTimerWheel expiryWheel = new HierarchicalTimerWheel("waiting-room-expiry", Config.WAITING_ROOM_TICK_MILLIS);
+
+    protected WaitingRoom() {
+        Set<LocalDateTime> dates = new HashSet<>();
+        for (String date : Config.WAITING_ROOM_HOT_DATES.split(",")) {
+            if (!date.trim().isEmpty()) {
+                dates.add(LocalDateTime.parse(date.trim()));
+            }
+        }
+        this.hotDates = Collections.unmodifiableSet(dates);
+
+        if (!hotDates.isEmpty()) {
+            LOGGER.info("Waiting room is in front of " + hotDates);
+        }
+    }
+
+    public static WaitingRoom instance() {
+        return INSTANCE;
+    }
+
+    public boolean isHot(LocalDateTime date) {
+        return hotDates.contains(date);
+    }
+
+    /**
+     * Joins the queue for a hot date.
+     *
+     * @param date the date
+     * @return the ticket, or null if the waiting room is full
+     */
+    public Ticket join(LocalDateTime date) {
+        if (numTickets.incrementAndGet() > Config.WAITING_ROOM_MAX_TICKETS) {
+            numTickets.decrementAndGet();
+            return null;
+        }
+
+        Line line = lines.computeIfAbsent(date, d -> new Line());
+        Ticket ticket = new Ticket(UUID.randomUUID().toString(), date, line.issue());
+        tickets.put(ticket.token, ticket);
+        scheduleExpiry(ticket);
+
+        return ticket;
+    }
+
+    public Ticket get(String token) {
+        Ticket ticket = tickets.get(token);
+
+        if (ticket != null && ticket.hasExpired()) {
+            forget(ticket);
+            return null;
+        }
+
+        return ticket;
+    }
+
+    /**
+     * Checks whether the holder of the token may use the booking and seat endpoints for a date. Dates that aren't hot
+     * are open to everyone.
+     *
+     * @param date  the date
+     * @param token the token from the holder's ticket, or null if they don't have one
+     * @return true if they may go through
+     */
+    public boolean isAdmitted(LocalDateTime date, String token) {
+        if (!isHot(date)) {
+            return true;
+        }
+
+        Ticket ticket = token == null ? null : get(token);
+        return ticket != null && ticket.date.equals(date) && ticket.position() == 0;
+    }
+
+    /**
+     * Forgets every queue and ticket.
+     */
+    public void clear() {
+        lines.clear();
+        tickets.clear();
+        numTickets.set(0);
+    }
+
+    /**
+     * checks on the ticket when it is due to expire. Asking about a ticket pushes its expiry back, in which case it is
+     * checked on again later rather than moved on the wheel each time.
+     */
+    private void scheduleExpiry(Ticket ticket) {
+        long delayMillis = TimeUnit.NANOSECONDS.toMillis(ticket.expiresAt - System.nanoTime());
+
+        expiryWheel.schedule(() -> {
+            if (ticket.hasExpired()) {
+                forget(ticket);
+            } else if (tickets.get(ticket.token) == ticket) {
+                scheduleExpiry(ticket);
+            }
+        }, Math.max(0, delayMillis));
+    }
+
+    /**
+     * forgets a ticket, freeing its place in the waiting room. Tickets forgotten by a clear are already gone.
+     */
+    private void forget(Ticket ticket) {
+        if (tickets.remove(ticket.token, ticket)) {
+            numTickets.decrementAndGet();
+        }
+    }
+
+    /**
+     * The queue for one hot date.
+     */
+    private static class Line {
+
+        private final TokenBucket admissions = new TokenBucket(Config.WAITING_ROOM_ADMIT_PER_SECOND, Config.WAITING_ROOM_BURST);
+        private long issued = 0;
+        private long admitted = 0;
+
+        private synchronized long issue() {
+            return ++issued;
+        }
+
+        /**
+         * Lets through as many more tickets as the token bucket allows, then gets the number of tickets let through.
+         */
+        private synchronized long admitted() {
+            long waiting = issued - admitted;
+            if (waiting > 0) {
+                admitted += admissions.take((int) Math.min(waiting, Integer.MAX_VALUE));
+            }
+            return admitted;
+        }
+    }
+
+    /**
+     * A place in the queue for a hot date.
+     */
+    public class Ticket {
+
+        private final String token;
+        private final LocalDateTime date;
+        private final long number;
+        private volatile boolean admitted = false;
+        private volatile long expiresAt;
+
+        private Ticket(String token, LocalDateTime date, long number) {
+            this.token = token;
+            this.date = date;
+            this.number = number;
+            this.expiresAt = System.nanoTime() + TimeUnit.SECONDS.toNanos(Config.WAITING_ROOM_IDLE_SECONDS);
+        }
+
+        public String getToken() {
+            return token;
+        }
+
+        public LocalDateTime getDate() {
+            return date;
+        }
+
+        /**
+         * Gets the number of people ahead of this ticket in the queue, or 0 if it has been let through.
+         */
+        public long position() {
+            // the line is gone if the waiting room has been cleared, in which case the ticket is never let through
+            Line line = lines.get(date);
+            long numAdmitted = line == null ? 0 : line.admitted();
+
+            if (number > numAdmitted) {
+                // the holder is still waiting, so the ticket is kept for a while longer
+                expiresAt = System.nanoTime() + TimeUnit.SECONDS.toNanos(Config.WAITING_ROOM_IDLE_SECONDS);
+                return number - numAdmitted;
+            }
+
+            // the ticket is valid for a while from when its holder first finds out they have been let through
+            if (!admitted) {
+                admitted = true;
+                expiresAt = System.nanoTime() + TimeUnit.SECONDS.toNanos(Config.WAITING_ROOM_ADMISSION_SECONDS);
+            }
+
+            return 0;
+        }
+
+        private boolean hasExpired() {
+            return System.nanoTime() - expiresAt > 0;
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package se325.assignment01.concert.service.util;
+
+import org.apache.commons.lang3.builder.EqualsBuilder;
+import org.apache.commons.lang3.builder.HashCodeBuilder;
+
+import java.time.LocalDateTime;
+
+/**
+ * Identifies a single performance of a concert, i.e. a concert on a particular date. Used as the key for all of the
+ * in-memory state the service keeps per performance.
+ * concertId   the id of the concert
+ * date        the date of the performance
+ */
+public class ConcertDateKey {
+
+    private final long concertId;
+    private final LocalDateTime date;
+
+    public ConcertDateKey(long concertId, LocalDateTime date) {
+        this.concertId = concertId;
+        this.date = date;
+    }
+
+    public long getConcertId() {
+        return concertId;
+    }
+
+    public LocalDateTime getDate() {
+        return date;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+
+        if (o == null || getClass() != o.getClass()) return false;
+
+        ConcertDateKey that = (ConcertDateKey) o;
+
+        return new EqualsBuilder()
+                .append(concertId, that.concertId)
+                .append(date, that.date)
+                .isEquals();
+    }
+
+    @Override
+    public int hashCode() {
+        return new HashCodeBuilder(17, 37)
+                .append(concertId)
+                .append(date)
+                .toHashCode();
+    }
+
+    @Override
+    public String toString() {
+        return concertId + "@" + date;
+    }
+}
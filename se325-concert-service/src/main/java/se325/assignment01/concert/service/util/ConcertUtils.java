@@ -10,9 +10,14 @@ import se325.assignment01.concert.service.services.PersistenceManager;
 import javax.persistence.EntityManager;
 import javax.persistence.TypedQuery;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class ConcertUtils {
 
@@ -20,11 +25,22 @@ public class ConcertUtils {
 
     /**
      * This method will clear all seat and booking data from the database. Then, it will create all Seat objects for
-     * all concerts and dates.
+     * all concerts and dates, making the seats of as many dates at once as the concert.init.parallelism system
+     * property says.
      */
     public static void initConcerts() {
+        initConcerts(Config.INIT_PARALLELISM);
+    }
+
+    /**
+     * As {@link #initConcerts()}, but making the seats of the given number of dates at once. Each date needs a
+     * connection of its own, so there is no point in doing more dates at once than the connection pool holds.
+     */
+    public static void initConcerts(int parallelism) {
         LOGGER.debug("initConcerts(): Creating the Application");
 
+        Set<LocalDateTime> allDates = new HashSet<>();
+
         EntityManager em = PersistenceManager.instance().createEntityManager();
         try {
 
@@ -34,33 +50,75 @@ public class ConcertUtils {
             List<Concert> concerts = query.getResultList();
 
             // Get all dates for all concerts
-            Set<LocalDateTime> allDates = new HashSet<>();
             for (Concert c : concerts) {
                 Set<LocalDateTime> dates = c.getDates();
                 allDates.addAll(dates);
             }
             em.getTransaction().commit();
+        } finally {
+            em.close();
+        }
 
-            LOGGER.debug("initConcerts(): There are " + allDates.size() + " concert dates");
+        LOGGER.debug("initConcerts(): There are " + allDates.size() + " concert dates");
 
-            // For each concert date, create the seats for that date and persist them.
-            int seatCount = 0;
+        // For each concert date, create the seats for that date and persist them.
+        int seatCount = 0;
+        if (parallelism <= 1 || allDates.size() <= 1) {
             for (LocalDateTime date : allDates) {
+                seatCount += createSeats(date);
+            }
+        } else {
+            ExecutorService executor = Executors.newFixedThreadPool(Math.min(parallelism, allDates.size()));
+            try {
+                List<Future<Integer>> created = new ArrayList<>();
+                for (LocalDateTime date : allDates) {
+                    created.add(executor.submit(() -> createSeats(date)));
+                }
 
-                em.getTransaction().begin();
-                Set<Seat> seatsForDate = TheatreLayout.createSeatsFor(date);
-                for (Seat s : seatsForDate) {
-                    em.persist(s);
-                    seatCount++;
+                for (Future<Integer> seats : created) {
+                    seatCount += seats.get();
                 }
-                em.getTransaction().commit();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while creating the seats", e);
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("Failed to create the seats", e.getCause());
+            } finally {
+                executor.shutdownNow();
+            }
+        }
 
-                // Ensures we aren't braking the EM with thousands of seat entities.
-                em.clear();
+        LOGGER.debug("initConcerts(): Created " + seatCount + " seats!");
+    }
+
+    /**
+     * creates the seats for a date in a transaction of its own. The inserts
+     * are sent to the database in batches, and the EM is emptied after each
+     * batch so it doesn't have to keep track of seats that are already written.
+     * @param date
+     * @return the number of seats created
+     */
+    private static int createSeats(LocalDateTime date) {
+        EntityManager em = PersistenceManager.instance().createEntityManager();
+        try {
+            em.getTransaction().begin();
+
+            int seatCount = 0;
+            for (Seat s : TheatreLayout.createSeatsFor(date)) {
+                em.persist(s);
+
+                if (++seatCount % Config.DB_BATCH_SIZE == 0) {
+                    em.flush();
+                    em.clear();
+                }
             }
 
-            LOGGER.debug("initConcerts(): Created " + seatCount + " seats!");
+            em.getTransaction().commit();
+            return seatCount;
         } finally {
+            if (em.getTransaction().isActive()) {
+                em.getTransaction().rollback();
+            }
             em.close();
         }
     }
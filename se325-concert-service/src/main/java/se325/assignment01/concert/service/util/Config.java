@@ -0,0 +1,234 @@
+package se325.assignment01.concert.service.util;
+
+import se325.assignment01.concert.service.services.BookingWriter;
+
+/**
+ * Settings for the concert service. Each setting has a sensible default and can be overridden with a system property
+ * when the service is started, e.g. -Dconcert.booking.mode=OPTIMISTIC.
+ */
+public class Config {
+
+    /**
+     * The JDBC URL of the database, which overrides the one in persistence.xml, or empty to use that one. The mvstore
+     * Maven profile sets this to an H2 database using the MVStore, which reads from snapshots rather than taking
+     * table locks.
+     */
+    public static final String DATABASE_URL = System.getProperty("concert.database.url", "");
+
+    /**
+     * How bookings write their seats to the database. See {@link BookingWriter.Mode}. Pessimistic is the default
+     * because H2's page store locks whole tables, so optimistic readers have to upgrade their shared locks to write.
+     */
+    public static final BookingWriter.Mode BOOKING_MODE =
+            BookingWriter.Mode.valueOf(System.getProperty("concert.booking.mode", "PESSIMISTIC").toUpperCase());
+
+    /**
+     * The number of times an optimistic booking is retried after a version conflict before it is rejected.
+     */
+    public static final int BOOKING_MAX_RETRIES = Integer.getInteger("concert.booking.maxRetries", 3);
+
+    /**
+     * Whether bookings are written through the group-commit {@link se325.assignment01.concert.service.services.BookingPipeline},
+     * which commits bookings that arrive together in one transaction.
+     */
+    public static final boolean BOOKING_GROUP_COMMIT = Boolean.getBoolean("concert.booking.groupCommit");
+
+    /**
+     * The most bookings the group-commit pipeline puts in one transaction.
+     */
+    public static final int BOOKING_BATCH_MAX_SIZE = Integer.getInteger("concert.booking.batchMaxSize", 64);
+
+    /**
+     * The longest the group-commit pipeline waits for a batch to fill before committing it, in milliseconds.
+     */
+    public static final long BOOKING_BATCH_MAX_WAIT_MILLIS = Long.getLong("concert.booking.batchMaxWaitMillis", 2);
+
+    /**
+     * The longest a booking waits in the group-commit pipeline for its batch to be committed before it is turned away,
+     * in milliseconds.
+     */
+    public static final long BOOKING_BATCH_TIMEOUT_MILLIS = Long.getLong("concert.booking.batchTimeoutMillis", 30000);
+
+    /**
+     * How long seats are held for when a hold doesn't ask for a particular time, in seconds.
+     */
+    public static final int HOLD_DEFAULT_SECONDS = Integer.getInteger("concert.hold.defaultSeconds", 300);
+
+    /**
+     * The longest that seats can be held for, in seconds.
+     */
+    public static final int HOLD_MAX_SECONDS = Integer.getInteger("concert.hold.maxSeconds", 900);
+
+    /**
+     * The resolution of hold expiry, in milliseconds. Holds expire up to one tick late.
+     */
+    public static final long HOLD_TICK_MILLIS = Long.getLong("concert.hold.tickMillis", 100);
+
+    /**
+     * The most concert dates which don't exist that the seat inventory remembers, so that it can turn them away without
+     * asking the database.
+     */
+    public static final int SEAT_INVENTORY_MAX_MISSING = Integer.getInteger("concert.seatInventory.maxMissing", 10000);
+
+    /**
+     * The dates which are in high demand, as a comma separated list of ISO date-times. The booking and seat
+     * endpoints for these dates can only be used by people who have been let through the waiting room.
+     */
+    public static final String WAITING_ROOM_HOT_DATES = System.getProperty("concert.waitingRoom.hotDates", "");
+
+    /**
+     * The number of people let through the waiting room for each hot date per second.
+     */
+    public static final double WAITING_ROOM_ADMIT_PER_SECOND = Double.parseDouble(System.getProperty("concert.waitingRoom.admitPerSecond", "10"));
+
+    /**
+     * The number of people who can be let through the waiting room for a hot date at once, after a quiet spell.
+     */
+    public static final int WAITING_ROOM_BURST = Integer.getInteger("concert.waitingRoom.burst", 10);
+
+    /**
+     * How long someone who has been let through the waiting room can keep using the booking and seat endpoints,
+     * in seconds.
+     */
+    public static final int WAITING_ROOM_ADMISSION_SECONDS = Integer.getInteger("concert.waitingRoom.admissionSeconds", 600);
+
+    /**
+     * How long a ticket for the waiting room is kept when its holder stops asking whether they have been let through,
+     * in seconds.
+     */
+    public static final int WAITING_ROOM_IDLE_SECONDS = Integer.getInteger("concert.waitingRoom.idleSeconds", 60);
+
+    /**
+     * The resolution of waiting room ticket expiry, in milliseconds. Tickets are forgotten up to one tick late.
+     */
+    public static final long WAITING_ROOM_TICK_MILLIS = Long.getLong("concert.waitingRoom.tickMillis", 1000);
+
+    /**
+     * The most people that can be waiting in, or let through, the waiting rooms at once.
+     */
+    public static final int WAITING_ROOM_MAX_TICKETS = Integer.getInteger("concert.waitingRoom.maxTickets", 100000);
+
+    /**
+     * The most booking outcomes remembered for idempotency keys at once.
+     */
+    public static final int IDEMPOTENCY_MAX_ENTRIES = Integer.getInteger("concert.idempotency.maxEntries", 10000);
+
+    /**
+     * How long the outcome of a request with an idempotency key is remembered, in seconds.
+     */
+    public static final int IDEMPOTENCY_TTL_SECONDS = Integer.getInteger("concert.idempotency.ttlSeconds", 600);
+
+    /**
+     * The most seat changes remembered for each date. A client which is further behind than this has to fetch all
+     * the seats again.
+     */
+    public static final int SEAT_CHANGES_CAPACITY = Integer.getInteger("concert.seatChanges.capacity", 1024);
+
+    /**
+     * The number of threads which send seat changes to everyone watching the seats on a date.
+     */
+    public static final int SEAT_STREAM_THREADS = Integer.getInteger("concert.seatStream.threads", 4);
+
+    /**
+     * The most seat changes which can be waiting to be sent to one viewer. A viewer which falls further behind than
+     * this is disconnected, and has to reconnect to catch up.
+     */
+    public static final int SEAT_STREAM_BUFFER = Integer.getInteger("concert.seatStream.buffer", 64);
+
+    /**
+     * The longest a viewer of the seats on a date can take to accept an event, in milliseconds, before it is
+     * disconnected.
+     */
+    public static final long SEAT_STREAM_SEND_TIMEOUT_MILLIS = Long.getLong("concert.seatStream.sendTimeoutMillis", 5000);
+
+    /**
+     * The number of threads which send notifications to subscribers.
+     */
+    public static final int NOTIFICATION_THREADS = Integer.getInteger("concert.notification.threads", 2);
+
+    /**
+     * The most notifications which can be waiting to be sent. Once this many are waiting, the thread which checks
+     * the subscribers sends their notifications itself, so no date is checked again until the queue has room.
+     */
+    public static final int NOTIFICATION_QUEUE_CAPACITY = Integer.getInteger("concert.notification.queueCapacity", 10000);
+
+    /**
+     * How long the changes to a date are gathered up for before its subscribers are checked, in milliseconds. The
+     * subscribers are checked on every change if this is 0.
+     */
+    public static final long NOTIFICATION_COALESCE_MILLIS = Long.getLong("concert.notification.coalesceMillis", 20);
+
+    /**
+     * How long a subscription waits to be notified before it times out, in seconds.
+     */
+    public static final int SUBSCRIPTION_TIMEOUT_SECONDS = Integer.getInteger("concert.subscription.timeoutSeconds", 600);
+
+    /**
+     * How often subscriptions are checked for subscribers who have gone, or which have outlived their timeout, in
+     * milliseconds.
+     */
+    public static final long SUBSCRIPTION_SWEEP_MILLIS = Long.getLong("concert.subscription.sweepMillis", 1000);
+
+    /**
+     * The most subscriptions that one user can have waiting at once.
+     */
+    public static final int SUBSCRIPTIONS_PER_USER = Integer.getInteger("concert.subscription.maxPerUser", 10);
+
+    /**
+     * The most subscriptions that can be waiting at once, across every user.
+     */
+    public static final int SUBSCRIPTIONS_MAX = Integer.getInteger("concert.subscription.max", 10000);
+
+    /**
+     * The file that subscriptions are written to, so that a subscriber can come back for their notification after
+     * the service restarts.
+     */
+    public static final String SUBSCRIPTION_LOG_FILE = System.getProperty("concert.subscription.logFile",
+            System.getProperty("java.io.tmpdir") + "/concert-subscriptions.log");
+
+    /**
+     * The number of lines appended to the subscription log before it is rewritten with just the open subscriptions.
+     */
+    public static final int SUBSCRIPTION_LOG_COMPACT_LINES = Integer.getInteger("concert.subscription.logCompactLines", 10000);
+
+    /**
+     * The keys which sign session tokens, as a comma separated list of id:base64-secret pairs. The first key signs new
+     * tokens and all of them are accepted. Every service which should accept the same sessions needs the same keys.
+     * If none are given, a key is made up for each service when it starts.
+     */
+    public static final String SESSION_KEYS = System.getProperty("concert.session.keys", "");
+
+    /**
+     * How long a session lasts before the user has to log in again, in seconds.
+     */
+    public static final int SESSION_TTL_SECONDS = Integer.getInteger("concert.session.ttlSeconds", 1800);
+
+    /**
+     * The most connections to the database that are kept in the pool.
+     */
+    public static final int DB_POOL_SIZE = Integer.getInteger("concert.db.poolSize", 10);
+
+    /**
+     * How long a request waits for a connection from the pool before giving up, in milliseconds.
+     */
+    public static final int DB_POOL_TIMEOUT_MILLIS = Integer.getInteger("concert.db.poolTimeoutMillis", 5000);
+
+    /**
+     * How long a connection can be out of the pool before a warning is logged that it may have leaked, in
+     * milliseconds. At least 2000, or 0 to never warn.
+     */
+    public static final int DB_POOL_LEAK_MILLIS = Integer.getInteger("concert.db.poolLeakMillis", 10000);
+
+    /**
+     * The most inserts or updates that are sent to the database together, or 1 to send each on its own.
+     */
+    public static final int DB_BATCH_SIZE = Integer.getInteger("concert.db.batchSize", 50);
+
+    /**
+     * The number of concert dates whose seats are made at once when the database is set up. With 1, the dates are
+     * done one after another.
+     */
+    public static final int INIT_PARALLELISM = Integer.getInteger("concert.init.parallelism", 1);
+
+    private Config() {}
+}
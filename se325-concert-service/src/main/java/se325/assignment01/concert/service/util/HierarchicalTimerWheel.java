@@ -0,0 +1,187 @@
+package se325.assignment01.concert.service.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A hierarchical timer wheel, used to expire large numbers of short-lived timeouts cheaply. Scheduling and cancelling
+ * a timeout are both O(1), and a tick only touches the timeouts which are due (plus, now and then, the timeouts which
+ * cascade down from a coarser wheel).
+ * <p>
+ * There are {@link #NUM_LEVELS} wheels of {@link #WHEEL_SIZE} slots. A slot in the first wheel covers one tick, a
+ * slot in the second wheel covers {@link #WHEEL_SIZE} ticks and so on. A timeout is placed in the finest wheel which
+ * can reach its deadline, and moves down to a finer wheel each time the finer wheel comes around to it.
+ * <p>
+ * A single daemon thread advances the wheel once per tick and runs the expired tasks, so tasks should be short.
+ */
+public class HierarchicalTimerWheel {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(HierarchicalTimerWheel.class);
+
+    private static final int WHEEL_BITS = 6;
+    public static final int WHEEL_SIZE = 1 << WHEEL_BITS;
+    public static final int NUM_LEVELS = 4;
+
+    private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+    private static final long MAX_TICKS = (1L << (WHEEL_BITS * NUM_LEVELS)) - 1;
+
+    private final long tickMillis;
+    private final long startMillis;
+    private final Timeout[][] slots = new Timeout[NUM_LEVELS][WHEEL_SIZE];
+    private final ScheduledExecutorService ticker;
+
+    private long currentTick = 0;
+
+    public HierarchicalTimerWheel(String name, long tickMillis) {
+        this.tickMillis = tickMillis;
+        this.startMillis = System.currentTimeMillis();
+
+        // every slot holds a circular list with a sentinel at its head, so that unlinking never needs a special case
+        for (int level = 0; level < NUM_LEVELS; level++) {
+            for (int slot = 0; slot < WHEEL_SIZE; slot++) {
+                slots[level][slot] = new Timeout(null, 0);
+            }
+        }
+
+        this.ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, name);
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.ticker.scheduleAtFixedRate(this::tick, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Schedules a task to run after the given delay. The task runs on the wheel's thread, no earlier than the delay
+     * and no more than one tick after it.
+     *
+     * @param task        the task to run
+     * @param delayMillis the delay in milliseconds
+     * @return a handle which can be used to cancel the task
+     */
+    public synchronized Timeout schedule(Runnable task, long delayMillis) {
+        long ticks = Math.min(MAX_TICKS, Math.max(1, (delayMillis + tickMillis - 1) / tickMillis));
+
+        Timeout timeout = new Timeout(task, currentTick + ticks);
+        insert(timeout);
+
+        return timeout;
+    }
+
+    /**
+     * Stops the wheel. Any timeouts which haven't expired are dropped.
+     */
+    public void shutdown() {
+        ticker.shutdownNow();
+    }
+
+    private void tick() {
+        List<Timeout> expired = new ArrayList<>();
+
+        synchronized (this) {
+            long targetTick = (System.currentTimeMillis() - startMillis) / tickMillis;
+
+            // catch up on any ticks that were missed if the thread was held up
+            while (currentTick < targetTick) {
+                currentTick++;
+
+                // move timeouts down from the coarser wheels whenever a finer wheel has gone all the way around
+                for (int level = 1; level < NUM_LEVELS; level++) {
+                    if ((currentTick & ((1L << (WHEEL_BITS * level)) - 1)) != 0) {
+                        break;
+                    }
+                    int slot = (int) (currentTick >>> (WHEEL_BITS * level)) & WHEEL_MASK;
+                    for (Timeout timeout : drain(slots[level][slot])) {
+                        insert(timeout);
+                    }
+                }
+
+                expired.addAll(drain(slots[0][(int) currentTick & WHEEL_MASK]));
+            }
+        }
+
+        for (Timeout timeout : expired) {
+            try {
+                timeout.task.run();
+            } catch (RuntimeException e) {
+                LOGGER.error("Timer task failed", e);
+            }
+        }
+    }
+
+    private void insert(Timeout timeout) {
+        long delta = timeout.deadline - currentTick;
+
+        int level = 0;
+        while (level < NUM_LEVELS - 1 && delta >= (1L << (WHEEL_BITS * (level + 1)))) {
+            level++;
+        }
+
+        int slot = (int) (timeout.deadline >>> (WHEEL_BITS * level)) & WHEEL_MASK;
+        Timeout head = slots[level][slot];
+
+        timeout.prev = head.prev;
+        timeout.next = head;
+        head.prev.next = timeout;
+        head.prev = timeout;
+    }
+
+    private List<Timeout> drain(Timeout head) {
+        List<Timeout> timeouts = new ArrayList<>();
+
+        for (Timeout timeout = head.next; timeout != head; ) {
+            Timeout next = timeout.next;
+            timeout.prev = null;
+            timeout.next = null;
+            timeouts.add(timeout);
+            timeout = next;
+        }
+
+        head.next = head;
+        head.prev = head;
+
+        return timeouts;
+    }
+
+    /**
+     * A task which has been scheduled on the wheel.
+     */
+    public class Timeout {
+
+        private final Runnable task;
+        private final long deadline;
+        private Timeout prev = this;
+        private Timeout next = this;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Stops the task from running, if it hasn't been run already.
+         *
+         * @return true if the task was cancelled, false if it had already expired or been cancelled
+         */
+        public boolean cancel() {
+            synchronized (HierarchicalTimerWheel.this) {
+                if (next == null) {
+                    return false;
+                }
+
+                prev.next = next;
+                next.prev = prev;
+                prev = null;
+                next = null;
+
+                return true;
+            }
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package se325.assignment01.concert.service.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * A registry of named counters, timers and gauges which describe how the service is running. Metrics are created the
+ * first time they are asked for, and can be read all at once with {@link #snapshot()}.
+ */
+public class Metrics {
+
+    private static final ConcurrentSkipListMap<String, Metric> METRICS = new ConcurrentSkipListMap<>();
+
+    private Metrics() {}
+
+    /**
+     * Gets the counter with the given name, creating it if needed.
+     */
+    public static Counter counter(String name) {
+        return (Counter) METRICS.computeIfAbsent(name, n -> new Counter());
+    }
+
+    /**
+     * Gets the timer with the given name, creating it if needed.
+     */
+    public static Timer timer(String name) {
+        return (Timer) METRICS.computeIfAbsent(name, n -> new Timer());
+    }
+
+    /**
+     * Registers a gauge, which is read whenever the metrics are. Replaces any gauge with the same name.
+     */
+    public static void gauge(String name, LongSupplier value) {
+        METRICS.put(name, value::getAsLong);
+    }
+
+    /**
+     * Reads every metric, in order of name.
+     */
+    public static Map<String, Object> snapshot() {
+        Map<String, Object> snapshot = new LinkedHashMap<>();
+        for (Map.Entry<String, Metric> metric : METRICS.entrySet()) {
+            snapshot.put(metric.getKey(), metric.getValue().value());
+        }
+        return snapshot;
+    }
+
+    private interface Metric {
+        Object value();
+    }
+
+    /**
+     * A count of things that have happened.
+     */
+    public static class Counter implements Metric {
+
+        private final LongAdder count = new LongAdder();
+
+        public void increment() {
+            count.increment();
+        }
+
+        @Override
+        public Object value() {
+            return count.sum();
+        }
+    }
+
+    /**
+     * Records how long something takes. Reads as the number of times it was recorded, and the mean and the longest
+     * time in milliseconds.
+     */
+    public static class Timer implements Metric {
+
+        private final LongAdder count = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+        public void record(long nanos) {
+            count.increment();
+            totalNanos.add(nanos);
+            maxNanos.accumulate(nanos);
+        }
+
+        /**
+         * Records the time since the given {@link System#nanoTime()}.
+         */
+        public void recordSince(long startNanos) {
+            record(System.nanoTime() - startNanos);
+        }
+
+        @Override
+        public Object value() {
+            long n = count.sum();
+
+            Map<String, Object> value = new LinkedHashMap<>();
+            value.put("count", n);
+            value.put("meanMillis", n == 0 ? 0.0 : (double) totalNanos.sum() / n / TimeUnit.MILLISECONDS.toNanos(1));
+            value.put("maxMillis", (double) maxNanos.get() / TimeUnit.MILLISECONDS.toNanos(1));
+            return value;
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package se325.assignment01.concert.service.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import static se325.assignment01.concert.service.util.TheatreLayout.NUM_SEATS_IN_THEATRE;
+import static se325.assignment01.concert.service.util.TheatreLayout.NUM_SEATS_PER_ROW;
+
+/**
+ * A lock-free bitmap holding one bit per seat in the theatre, in the row-major order given by
+ * {@link TheatreLayout#seatIndex(String)}. A set bit means the seat has been claimed.
+ *
+ * Seats are claimed with compare-and-set on each word of the bitmap. A claim covering more than one word sets the
+ * words in order and backs out the words it already set if a later word conflicts, so a claim is all or nothing.
+ */
+public class SeatBitmap {
+
+    public static final int NUM_WORDS = (NUM_SEATS_IN_THEATRE + Long.SIZE - 1) / Long.SIZE;
+
+    private final AtomicLongArray words = new AtomicLongArray(NUM_WORDS);
+
+    /**
+     * Creates a mask with a bit set for each of the given seat labels.
+     *
+     * @param labels the seat labels
+     * @return the mask, or null if any of the labels doesn't name a seat in the theatre
+     */
+    public static long[] maskOf(List<String> labels) {
+        long[] mask = new long[NUM_WORDS];
+
+        for (String label : labels) {
+            int index = TheatreLayout.seatIndex(label);
+            if (index < 0) {
+                return null;
+            }
+            mask[index / Long.SIZE] |= 1L << (index % Long.SIZE);
+        }
+
+        return mask;
+    }
+
+    /**
+     * Creates a mask covering a run of seats in one row.
+     *
+     * @param row      the row number, starting from 0
+     * @param firstSeat the first seat in the row to include, starting from 0
+     * @param numSeats  the number of seats to include
+     * @return the mask
+     */
+    public static long[] maskOfRun(int row, int firstSeat, int numSeats) {
+        long[] mask = new long[NUM_WORDS];
+
+        for (int index = row * NUM_SEATS_PER_ROW + firstSeat; index < row * NUM_SEATS_PER_ROW + firstSeat + numSeats; index++) {
+            mask[index / Long.SIZE] |= 1L << (index % Long.SIZE);
+        }
+
+        return mask;
+    }
+
+    /**
+     * Gets the labels of every seat in the mask.
+     *
+     * @param mask the mask
+     * @return the seat labels, in row-major order
+     */
+    public static List<String> labelsOf(long[] mask) {
+        List<String> labels = new ArrayList<>();
+
+        for (int w = 0; w < NUM_WORDS; w++) {
+            for (long bits = mask[w]; bits != 0; bits &= bits - 1) {
+                labels.add(TheatreLayout.seatLabel(w * Long.SIZE + Long.numberOfTrailingZeros(bits)));
+            }
+        }
+
+        return labels;
+    }
+
+    /**
+     * Attempts to claim all of the seats in the mask.
+     *
+     * @param mask the seats to claim
+     * @return true if every seat was claimed, false if any of them was already claimed (in which case none are)
+     */
+    public boolean tryClaim(long[] mask) {
+        for (int w = 0; w < NUM_WORDS; w++) {
+            if (mask[w] == 0) {
+                continue;
+            }
+
+            while (true) {
+                long current = words.get(w);
+
+                if ((current & mask[w]) != 0) {
+                    // back out the words that we have already claimed
+                    for (int undo = 0; undo < w; undo++) {
+                        clear(undo, mask[undo]);
+                    }
+                    return false;
+                }
+
+                if (words.compareAndSet(w, current, current | mask[w])) {
+                    break;
+                }
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Releases all of the seats in the mask. The seats must have been claimed by the caller.
+     *
+     * @param mask the seats to release
+     */
+    public void release(long[] mask) {
+        for (int w = 0; w < NUM_WORDS; w++) {
+            if (mask[w] != 0) {
+                clear(w, mask[w]);
+            }
+        }
+    }
+
+    /**
+     * Marks a seat as claimed without checking whether it already was. Used when loading the bitmap.
+     *
+     * @param index the index of the seat
+     */
+    public void set(int index) {
+        long bit = 1L << (index % Long.SIZE);
+        words.getAndUpdate(index / Long.SIZE, current -> current | bit);
+    }
+
+    /**
+     * Gets the claimed seats in one row as a bitmap of its own, with bit n set if seat n + 1 of the row is claimed.
+     * A row can straddle two words of the bitmap, in which case it is stitched back together.
+     *
+     * @param row the row number, starting from 0
+     * @return the bitmap of the row
+     */
+    public int rowBits(int row) {
+        int first = row * NUM_SEATS_PER_ROW;
+        int word = first / Long.SIZE;
+        int offset = first % Long.SIZE;
+
+        long bits = words.get(word) >>> offset;
+        if (offset + NUM_SEATS_PER_ROW > Long.SIZE) {
+            bits |= words.get(word + 1) << (Long.SIZE - offset);
+        }
+
+        return (int) (bits & ((1L << NUM_SEATS_PER_ROW) - 1));
+    }
+
+    private void clear(int w, long bits) {
+        words.getAndUpdate(w, current -> current & ~bits);
+    }
+}
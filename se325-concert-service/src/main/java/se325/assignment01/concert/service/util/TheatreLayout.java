@@ -62,6 +62,79 @@ public class TheatreLayout {
 
     }
 
+    /**
+     * Gets the row-major index of the seat with the given label, i.e. "A1" is 0, "A2" is 1 and "B1" is
+     * {@link #NUM_SEATS_PER_ROW}.
+     *
+     * @param label the seat label
+     * @return the index of the seat, or -1 if the label doesn't name a seat in the theatre
+     */
+    public static int seatIndex(String label) {
+
+        if (label == null || label.length() < 2) {
+            return -1;
+        }
+
+        int rowNum = label.charAt(0) - 'A';
+        if (rowNum < 0 || rowNum >= NUM_ROWS) {
+            return -1;
+        }
+
+        int seatNum;
+        try {
+            seatNum = Integer.parseInt(label.substring(1));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+
+        if (seatNum < 1 || seatNum > NUM_SEATS_PER_ROW || !label.substring(1).equals(Integer.toString(seatNum))) {
+            return -1;
+        }
+
+        return rowNum * NUM_SEATS_PER_ROW + (seatNum - 1);
+    }
+
+    /**
+     * Gets the label of the seat at the given row-major index. This is the inverse of {@link #seatIndex(String)}.
+     *
+     * @param index the index of the seat
+     * @return the seat label
+     */
+    public static String seatLabel(int index) {
+        char rowLabel = (char) ('A' + index / NUM_SEATS_PER_ROW);
+        return "" + rowLabel + (index % NUM_SEATS_PER_ROW + 1);
+    }
+
+    /**
+     * Finds a price band by name, ignoring case.
+     *
+     * @param name the name of the price band, e.g. "Gold Seating"
+     * @return the index of the price band in {@link #PRICE_BANDS}, or -1 if there isn't one with that name
+     */
+    public static int priceBandIndex(String name) {
+        for (int i = 0; i < PRICE_BANDS.length; i++) {
+            if (PRICE_BANDS[i].name.equalsIgnoreCase(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Gets the first row of a price band. Price bands run from the front of the theatre to the back, in the order of
+     * {@link #PRICE_BANDS}.
+     *
+     * @param priceBandIndex the index of the price band in {@link #PRICE_BANDS}
+     * @return the row number of the first row in the price band, starting from 0
+     */
+    public static int firstRowOf(int priceBandIndex) {
+        int row = 0;
+        for (int i = 0; i < priceBandIndex; i++) {
+            row += PRICE_BANDS[i].numRows;
+        }
+        return row;
+    }
+
     public static class PriceBand {
         public String name;
         public BigDecimal price;
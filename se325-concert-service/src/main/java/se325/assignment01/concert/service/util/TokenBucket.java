@@ -0,0 +1,38 @@
+package se325.assignment01.concert.service.util;
+
+/**
+ * A token bucket, which hands out tokens at a steady rate while allowing short bursts. The bucket holds up to a
+ * maximum number of tokens, and refills at the given rate whenever tokens are taken.
+ */
+public class TokenBucket {
+
+    private final double tokensPerNano;
+    private final double capacity;
+
+    private double tokens;
+    private long lastRefill;
+
+    public TokenBucket(double tokensPerSecond, int capacity) {
+        this.tokensPerNano = tokensPerSecond / 1_000_000_000.0;
+        this.capacity = capacity;
+        this.tokens = capacity;
+        this.lastRefill = System.nanoTime();
+    }
+
+    /**
+     * Takes up to the given number of tokens.
+     *
+     * @param wanted the number of tokens wanted
+     * @return the number of tokens taken, which is less than wanted if the bucket is running low
+     */
+    public synchronized int take(int wanted) {
+        long now = System.nanoTime();
+        tokens = Math.min(capacity, tokens + (now - lastRefill) * tokensPerNano);
+        lastRefill = now;
+
+        int taken = (int) Math.min(wanted, Math.floor(tokens));
+        tokens -= taken;
+
+        return taken;
+    }
+}
@@ -0,0 +1,113 @@
+package se325.assignment01.concert.service;
+
+import org.junit.AfterClass;
+import org.junit.Test;
+import se325.assignment01.concert.service.services.BookingWriter;
+import se325.assignment01.concert.service.services.PersistenceManager;
+import se325.assignment01.concert.service.util.ConcertUtils;
+import se325.assignment01.concert.service.util.TheatreLayout;
+
+import javax.persistence.EntityManager;
+import javax.ws.rs.WebApplicationException;
+import java.time.LocalDateTime;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static se325.assignment01.concert.service.util.TheatreLayout.NUM_SEATS_IN_THEATRE;
+
+/**
+ * Compares the pessimistic and optimistic booking modes of {@link BookingWriter} against the embedded database, with
+ * 1, 8 and 64 bookers competing for the seats of the same concert date. Every booker tries to book every seat, one
+ * seat per booking and in the same order, so all but one attempt on each seat is a conflict.
+ * <p>
+ * The in-memory seat inventory is deliberately bypassed so that the conflicts reach the database. This isn't part of
+ * the normal build - run it from the top of the repository with:
+ * <code>
+ *     mvn test -pl se325-concert-service -am -Dtest=BookingModeBenchmark -Dsurefire.failIfNoSpecifiedTests=false
+ * </code>
+ */
+public class BookingModeBenchmark {
+
+    private static final long CONCERT_ID = 1;
+    private static final LocalDateTime DATE = LocalDateTime.of(2020, 2, 15, 20, 0, 0);
+    private static final int[] BOOKERS = {1, 8, 64};
+
+    @AfterClass
+    public static void tearDown() {
+        PersistenceManager.instance().reset();
+    }
+
+    @Test
+    public void benchmarkPessimistic() throws InterruptedException {
+        for (int bookers : BOOKERS) {
+            run(BookingWriter.Mode.PESSIMISTIC, bookers);
+        }
+    }
+
+    @Test
+    public void benchmarkOptimistic() throws InterruptedException {
+        for (int bookers : BOOKERS) {
+            run(BookingWriter.Mode.OPTIMISTIC, bookers);
+        }
+    }
+
+    private void run(BookingWriter.Mode mode, int bookers) throws InterruptedException {
+
+        PersistenceManager.instance().reset();
+        ConcertUtils.initConcerts();
+
+        BookingWriter writer = new BookingWriter(PersistenceManager.instance(), mode, 3);
+        AtomicInteger booked = new AtomicInteger();
+        AtomicInteger rejected = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+
+        ExecutorService executor = Executors.newFixedThreadPool(bookers);
+        CountDownLatch start = new CountDownLatch(1);
+
+        for (int i = 0; i < bookers; i++) {
+            String uuid = "booker-" + i;
+            executor.submit(() -> {
+                start.await();
+                for (int seat = 0; seat < NUM_SEATS_IN_THEATRE; seat++) {
+                    try {
+                        writer.write(CONCERT_ID, DATE, Collections.singletonList(TheatreLayout.seatLabel(seat)), uuid);
+                        booked.incrementAndGet();
+                    } catch (WebApplicationException e) {
+                        rejected.incrementAndGet();
+                    } catch (RuntimeException e) {
+                        // lock timeouts, deadlocks and an exhausted connection pool are counted rather than hidden
+                        failed.incrementAndGet();
+                    }
+                }
+                return null;
+            });
+        }
+
+        long startTime = System.nanoTime();
+        start.countDown();
+        executor.shutdown();
+        executor.awaitTermination(10, TimeUnit.MINUTES);
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime);
+
+        int attempts = bookers * NUM_SEATS_IN_THEATRE;
+        System.out.println(String.format("%-11s bookers=%-3d attempts=%-5d booked=%-3d rejected=%-5d failed=%-4d time=%6dms  %8.1f attempts/s",
+                mode, bookers, attempts, booked.get(), rejected.get(), failed.get(), elapsedMillis,
+                attempts * 1000.0 / Math.max(1, elapsedMillis)));
+
+        // no seat may ever be booked twice, so every successful booking must be a different seat
+        EntityManager em = PersistenceManager.instance().createEntityManager();
+        try {
+            long bookedSeats = em.createQuery("select count(s) from Seat s where s.date = :date and s.isBooked = true", Long.class)
+                    .setParameter("date", DATE)
+                    .getSingleResult();
+            assertEquals(booked.get(), bookedSeats);
+        } finally {
+            em.close();
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package se325.assignment01.concert.service;
+
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.Test;
+import se325.assignment01.concert.service.domain.Booking;
+import se325.assignment01.concert.service.services.BookingPipeline;
+import se325.assignment01.concert.service.services.BookingWriter;
+import se325.assignment01.concert.service.services.PersistenceManager;
+import se325.assignment01.concert.service.util.ConcertUtils;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceException;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Response;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests that every booking sent through the {@link BookingPipeline} is answered, even when the database fails part
+ * way through a batch.
+ */
+public class BookingPipelineTest {
+
+    private static final long CONCERT_ID = 1;
+    private static final LocalDateTime DATE = LocalDateTime.of(2020, 2, 15, 20, 0, 0);
+    private static final String FAILING_SEAT = "A5";
+
+    @Before
+    public void setUp() {
+        PersistenceManager.instance().reset();
+        ConcertUtils.initConcerts();
+    }
+
+    @AfterClass
+    public static void tearDown() {
+        PersistenceManager.instance().reset();
+    }
+
+    /**
+     * Tests that when one booking in a batch fails with something other than a rejection, that booking fails and
+     * every other booking in the batch, including those after it, is still written.
+     */
+    @Test
+    public void testFailingBookingInBatch() throws InterruptedException {
+
+        BookingWriter failingWriter = new BookingWriter(PersistenceManager.instance(), BookingWriter.Mode.PESSIMISTIC, 3) {
+            @Override
+            public Booking bookSeats(EntityManager em, long concertId, LocalDateTime date, List<String> labels, String uuid) {
+                if (labels.contains(FAILING_SEAT)) {
+                    throw new PersistenceException("Injected failure");
+                }
+                return super.bookSeats(em, concertId, date, labels, uuid);
+            }
+        };
+
+        // a long wait so that every booking ends up in the same batch
+        BookingPipeline pipeline = new BookingPipeline(PersistenceManager.instance(), failingWriter, 64, 200, 10000);
+
+        ExecutorService callers = Executors.newFixedThreadPool(12);
+        List<Future<Booking>> bookings = new ArrayList<>();
+        for (int num = 1; num <= 12; num++) {
+            String label = "A" + num;
+            bookings.add(callers.submit(() -> pipeline.write(CONCERT_ID, DATE, Collections.singletonList(label), "1")));
+        }
+        callers.shutdown();
+
+        int booked = 0;
+        int failed = 0;
+        for (Future<Booking> booking : bookings) {
+            try {
+                booking.get(20, TimeUnit.SECONDS);
+                booked++;
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof PersistenceException);
+                failed++;
+            } catch (java.util.concurrent.TimeoutException e) {
+                fail("A caller was never answered");
+            }
+        }
+
+        assertEquals(11, booked);
+        assertEquals(1, failed);
+        assertEquals(11, countBookedSeats());
+    }
+
+    /**
+     * Tests that a caller who is told their booking failed because it took too long to commit never ends up with a
+     * booking, and a caller who is given a booking always has one, when the writer finishes right around the timeout.
+     */
+    @Test
+    public void testBookingCommittedAtTimeout() throws InterruptedException {
+
+        long timeoutMillis = 20;
+        Random random = new Random(325);
+
+        BookingWriter slowWriter = new BookingWriter(PersistenceManager.instance(), BookingWriter.Mode.PESSIMISTIC, 3) {
+            @Override
+            public Booking bookSeats(EntityManager em, long concertId, LocalDateTime date, List<String> labels, String uuid) {
+                Booking booking = super.bookSeats(em, concertId, date, labels, uuid);
+                try {
+                    // finish just before or just after the caller gives up
+                    Thread.sleep(timeoutMillis - 2 + random.nextInt(5));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return booking;
+            }
+        };
+
+        BookingPipeline pipeline = new BookingPipeline(PersistenceManager.instance(), slowWriter, 1, 0, timeoutMillis);
+
+        List<String> booked = new ArrayList<>();
+        List<String> turnedAway = new ArrayList<>();
+
+        for (int num = 1; num <= 12; num++) {
+            for (char row = 'A'; row <= 'D'; row++) {
+                String label = "" + row + num;
+                try {
+                    pipeline.write(CONCERT_ID, DATE, Collections.singletonList(label), "1");
+                    booked.add(label);
+                } catch (WebApplicationException e) {
+                    assertEquals(Response.Status.SERVICE_UNAVAILABLE.getStatusCode(), e.getResponse().getStatus());
+                    turnedAway.add(label);
+                }
+            }
+        }
+
+        // bookings whose callers gave up are cancelled by the writer, which may still be finishing
+        long deadline = System.currentTimeMillis() + 5000;
+        while (countBookedSeats() != booked.size() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+
+        for (String label : booked) {
+            assertTrue(label + " was booked but isn't in the database", isBooked(label));
+        }
+        for (String label : turnedAway) {
+            assertFalse(label + " was turned away but is in the database", isBooked(label));
+        }
+    }
+
+    private static boolean isBooked(String label) {
+        EntityManager em = PersistenceManager.instance().createEntityManager();
+        try {
+            return em.createQuery("select s.isBooked from Seat s where s.date = :date and s.label = :label", Boolean.class)
+                    .setParameter("date", DATE)
+                    .setParameter("label", label)
+                    .getSingleResult();
+        } finally {
+            em.close();
+        }
+    }
+
+    private static long countBookedSeats() {
+        EntityManager em = PersistenceManager.instance().createEntityManager();
+        try {
+            return em.createQuery("select count(s) from Seat s where s.date = :date and s.isBooked = true", Long.class)
+                    .setParameter("date", DATE)
+                    .getSingleResult();
+        } finally {
+            em.close();
+        }
+    }
+}
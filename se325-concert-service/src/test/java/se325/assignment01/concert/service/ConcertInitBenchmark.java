@@ -0,0 +1,78 @@
+package se325.assignment01.concert.service;
+
+import org.junit.AfterClass;
+import org.junit.Test;
+import se325.assignment01.concert.service.services.PersistenceManager;
+import se325.assignment01.concert.service.util.Config;
+import se325.assignment01.concert.service.util.ConcertUtils;
+
+import javax.persistence.EntityManager;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static se325.assignment01.concert.service.util.TheatreLayout.NUM_SEATS_IN_THEATRE;
+
+/**
+ * Times {@link ConcertUtils#initConcerts(int)} against the embedded database, which is what the service spends its
+ * startup and every test reset doing, with the seats of 1, 2, 4 and 8 dates made at once. Each run is repeated, and
+ * the first repeat is thrown away to warm up.
+ * <p>
+ * This isn't part of the normal build - run it from the top of the repository with:
+ * <code>
+ *     mvn test -pl se325-concert-service -am -Dtest=ConcertInitBenchmark -Dsurefire.failIfNoSpecifiedTests=false
+ * </code>
+ * and again with -Dconcert.db.batchSize=1 to compare against sending every insert on its own.
+ */
+public class ConcertInitBenchmark {
+
+    private static final int[] PARALLELISM = {1, 2, 4, 8};
+    private static final int REPEATS = 5;
+
+    @AfterClass
+    public static void tearDown() {
+        PersistenceManager.instance().reset();
+        ConcertUtils.initConcerts();
+    }
+
+    @Test
+    public void benchmarkInitConcerts() {
+        for (int parallelism : PARALLELISM) {
+            run(parallelism);
+        }
+    }
+
+    private void run(int parallelism) {
+
+        long totalMillis = 0;
+        long bestMillis = Long.MAX_VALUE;
+
+        for (int i = 0; i <= REPEATS; i++) {
+            PersistenceManager.instance().reset();
+
+            long startTime = System.nanoTime();
+            ConcertUtils.initConcerts(parallelism);
+            long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime);
+
+            if (i > 0) {
+                totalMillis += elapsedMillis;
+                bestMillis = Math.min(bestMillis, elapsedMillis);
+            }
+        }
+
+        // every date must have all of its seats, however many were made at once
+        EntityManager em = PersistenceManager.instance().createEntityManager();
+        long dates;
+        long seats;
+        try {
+            dates = em.createQuery("select count(distinct s.date) from Seat s", Long.class).getSingleResult();
+            seats = em.createQuery("select count(s) from Seat s", Long.class).getSingleResult();
+        } finally {
+            em.close();
+        }
+        assertEquals(dates * NUM_SEATS_IN_THEATRE, seats);
+
+        double meanMillis = (double) totalMillis / REPEATS;
+        System.out.println(String.format("parallelism=%-2d batchSize=%-4d dates=%-3d seats=%-5d mean=%7.1fms  best=%5dms  %9.1f seats/s",
+                parallelism, Config.DB_BATCH_SIZE, dates, seats, meanMillis, bestMillis, seats * 1000.0 / Math.max(1, meanMillis)));
+    }
+}
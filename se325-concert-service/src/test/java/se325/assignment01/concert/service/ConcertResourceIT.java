@@ -8,25 +8,45 @@ import se325.assignment01.concert.common.types.Genre;
 import javax.ws.rs.client.Client;
 import javax.ws.rs.client.ClientBuilder;
 import javax.ws.rs.client.Entity;
+import javax.ws.rs.client.WebTarget;
 import javax.ws.rs.core.Cookie;
+import javax.ws.rs.core.EntityTag;
 import javax.ws.rs.core.GenericType;
+import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.sse.SseEventSource;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
 import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.stream.Collectors;
+import java.util.zip.GZIPInputStream;
 
 import static org.junit.Assert.*;
 
 public class ConcertResourceIT {
 
     private static final String WEB_SERVICE_URI = "http://localhost:10000/services/concert-service";
+
+    // the date behind the waiting room, and the waiting room's settings, as set for Jetty in pom.xml
+    private static final long HOT_CONCERT_ID = 7;
+    private static final LocalDateTime HOT_DATE = LocalDateTime.of(2019, 12, 19, 20, 0, 0);
+    private static final String HOT_DATE_PATH = "/waitingroom/2019-12-19T20:00:00";
+    private static final int WAITING_ROOM_BURST = 2;
+    private static final int WAITING_ROOM_MAX_TICKETS = 5;
+    private static final int WAITING_ROOM_IDLE_SECONDS = 2;
     private Client client;
 
     /**
@@ -229,6 +249,49 @@ public class ConcertResourceIT {
 
     }
 
+    /**
+     * Tests that the catalog is sent with an ETag, and that a 304 is returned when the client already has the
+     * current version of it.
+     */
+    @Test
+    public void testGetConcertsNotModified() {
+
+        Response response = client.target(WEB_SERVICE_URI + "/concerts").request().get();
+        assertEquals(Response.Status.OK.getStatusCode(), response.getStatus());
+        EntityTag etag = response.getEntityTag();
+        assertNotNull(etag);
+        response.close();
+
+        response = client.target(WEB_SERVICE_URI + "/concerts").request().header("If-None-Match", etag.toString()).get();
+        assertEquals(Response.Status.NOT_MODIFIED.getStatusCode(), response.getStatus());
+        response.close();
+
+        // Another part of the catalog has an ETag of its own
+        response = client.target(WEB_SERVICE_URI + "/performers/1").request().header("If-None-Match", etag.toString()).get();
+        assertEquals(Response.Status.OK.getStatusCode(), response.getStatus());
+        assertNotEquals(etag, response.getEntityTag());
+        response.close();
+    }
+
+    /**
+     * Tests that the catalog is gzipped for a client which accepts that, and that it is the same once unzipped.
+     */
+    @Test
+    public void testGetConcertsGzipped() throws IOException {
+
+        byte[] plain = client.target(WEB_SERVICE_URI + "/concerts/1").request()
+                .header("Accept-Encoding", "identity").get(byte[].class);
+
+        Response response = client.target(WEB_SERVICE_URI + "/concerts/1").request()
+                .header("Accept-Encoding", "gzip").get();
+        assertEquals(Response.Status.OK.getStatusCode(), response.getStatus());
+        assertEquals("gzip", response.getHeaderString("Content-Encoding"));
+
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(response.readEntity(byte[].class)))) {
+            assertArrayEquals(plain, in.readAllBytes());
+        }
+    }
+
     /**
      * Tests that a 401 error is returned when an incorrect username is supplied on login, and makes sure that
      * no authentication token is generated.
@@ -663,6 +726,506 @@ public class ConcertResourceIT {
         }
     }
 
+    /**
+     * Tests that the compact seat map marks exactly the booked seats, whether it is asked for by media type or with
+     * the format query parameter.
+     */
+    @Test
+    public void testGetSeatMapForDate() {
+        login(client, "testuser", "pa55word");
+        attemptBooking(client, 1, LocalDateTime.of(2020, 2, 15, 20, 0, 0), "A1", "C5", "J12");
+
+        SeatMapDTO seatMap = client.target(WEB_SERVICE_URI + "/seats/2020-02-15T20:00:00")
+                .request(SeatMapDTO.MEDIA_TYPE).get(SeatMapDTO.class);
+
+        assertEquals(12, seatMap.getSeatsPerRow());
+        assertEquals(10, seatMap.getNumRows());
+        assertEquals(3, seatMap.getPriceBands().size());
+        assertEquals(0, seatMap.getPriceBands().get(0).getFirstRow());
+        assertEquals(5, seatMap.getPriceBands().get(1).getFirstRow());
+
+        List<Integer> booked = new ArrayList<>();
+        for (int i = 0; i < 120; i++) {
+            if (seatMap.isBooked(i)) {
+                booked.add(i);
+            }
+        }
+        assertEquals(Arrays.asList(0, 2 * 12 + 4, 119), booked);
+
+        SeatMapDTO sameSeatMap = client.target(WEB_SERVICE_URI + "/seats/2020-02-15T20:00:00?format=compact")
+                .request().get(SeatMapDTO.class);
+        assertEquals(seatMap.getBooked(), sameSeatMap.getBooked());
+    }
+
+    /**
+     * Tests that the seats which changed since a version of the seats can be fetched on their own, with only the
+     * latest change to each seat, and that a client which is too far behind is told to fetch all the seats again.
+     */
+    @Test
+    public void testGetSeatChanges() {
+        LocalDateTime date = LocalDateTime.of(2020, 2, 15, 20, 0, 0);
+
+        Response response = client.target(WEB_SERVICE_URI + "/seats/2020-02-15T20:00:00?status=Any").request().get();
+        long version = Long.parseLong(response.getHeaderString("Seat-Version"));
+        response.close();
+
+        login(client, "testuser", "pa55word");
+        Response bookingResponse = attemptBooking(client, 1, date, "C5", "C6");
+        attemptBooking(client, 1, date, "D1");
+
+        SeatChangesDTO changes = client.target(WEB_SERVICE_URI + "/seats/2020-02-15T20:00:00/changes?since=" + version)
+                .request().get(SeatChangesDTO.class);
+        assertFalse(changes.isResync());
+        assertEquals(Arrays.asList("C5", "C6", "D1"), changes.getBooked());
+        assertTrue(changes.getFreed().isEmpty());
+
+        // Nothing has changed since then
+        long latest = changes.getVersion();
+        changes = client.target(WEB_SERVICE_URI + "/seats/2020-02-15T20:00:00/changes?since=" + latest)
+                .request().get(SeatChangesDTO.class);
+        assertEquals(latest, changes.getVersion());
+        assertTrue(changes.getBooked().isEmpty());
+
+        // A cancelled booking replaces the earlier changes to its seats
+        client.target(bookingResponse.getLocation()).request().delete().close();
+        changes = client.target(WEB_SERVICE_URI + "/seats/2020-02-15T20:00:00/changes?since=" + version)
+                .request().get(SeatChangesDTO.class);
+        assertEquals(Arrays.asList("D1"), changes.getBooked());
+        assertEquals(Arrays.asList("C5", "C6"), changes.getFreed());
+
+        // A version from before the seats were reset is too old
+        changes = client.target(WEB_SERVICE_URI + "/seats/2020-02-15T20:00:00/changes?since=0")
+                .request().get(SeatChangesDTO.class);
+        assertTrue(changes.isResync());
+    }
+
+    /**
+     * Tests that someone watching the seats on a date is sent the seats which are booked and freed as they happen,
+     * and that a stream for a date the concert doesn't run on isn't found.
+     */
+    @Test
+    public void testStreamSeats() throws InterruptedException {
+        LocalDateTime date = LocalDateTime.of(2020, 2, 15, 20, 0, 0);
+
+        Response response = client.target(WEB_SERVICE_URI + "/concerts/1/dates/2030-02-15T20:00:00/seats/stream")
+                .request(MediaType.SERVER_SENT_EVENTS).get();
+        assertEquals(Response.Status.NOT_FOUND.getStatusCode(), response.getStatus());
+        response.close();
+
+        BlockingQueue<SeatChangesDTO> events = new LinkedBlockingQueue<>();
+        WebTarget stream = client.target(WEB_SERVICE_URI + "/concerts/1/dates/2020-02-15T20:00:00/seats/stream");
+
+        try (SseEventSource source = SseEventSource.target(stream).build()) {
+            source.register(event -> {
+                if ("seats".equals(event.getName())) {
+                    events.add(event.readData(SeatChangesDTO.class, MediaType.APPLICATION_JSON_TYPE));
+                }
+            });
+            source.open();
+
+            // Give the stream a moment to start
+            Thread.sleep(500);
+
+            login(client, "testuser", "pa55word");
+            Response bookingResponse = attemptBooking(client, 1, date, "C5", "C6");
+
+            SeatChangesDTO booked = events.poll(5, TimeUnit.SECONDS);
+            assertNotNull(booked);
+            assertEquals(Arrays.asList("C5", "C6"), booked.getBooked());
+
+            client.target(bookingResponse.getLocation()).request().delete().close();
+
+            SeatChangesDTO freed = events.poll(5, TimeUnit.SECONDS);
+            assertNotNull(freed);
+            assertEquals(Arrays.asList("C5", "C6"), freed.getFreed());
+            assertTrue(freed.getVersion() > booked.getVersion());
+        }
+    }
+
+    /**
+     * Tests that the number of free seats for a concert date goes down as seats are booked, and that a 404 is returned
+     * for a date the concert doesn't run on.
+     */
+    @Test
+    public void testGetAvailability() {
+        LocalDateTime date = LocalDateTime.of(2020, 2, 15, 20, 0, 0);
+
+        ConcertInfoNotificationDTO availability = client.target(WEB_SERVICE_URI + "/concerts/1/dates/2020-02-15T20:00:00/availability")
+                .request().get(ConcertInfoNotificationDTO.class);
+        assertEquals(120, availability.getNumSeatsRemaining());
+
+        login(client, "testuser", "pa55word");
+        attemptBooking(client, 1, date, 'A', 'B');
+
+        availability = client.target(WEB_SERVICE_URI + "/concerts/1/dates/2020-02-15T20:00:00/availability")
+                .request().get(ConcertInfoNotificationDTO.class);
+        assertEquals(96, availability.getNumSeatsRemaining());
+
+        Response response = client.target(WEB_SERVICE_URI + "/concerts/1/dates/2030-02-15T20:00:00/availability").request().get();
+        assertEquals(Response.Status.NOT_FOUND.getStatusCode(), response.getStatus());
+    }
+
+    /**
+     * Tests that a user can cancel their own booking but not anyone else's, and that the seats of a cancelled booking
+     * can be booked again straight away.
+     */
+    @Test
+    public void testCancelBooking() {
+        LocalDateTime date = LocalDateTime.of(2020, 2, 15, 20, 0, 0);
+
+        login(client, "testuser", "pa55word");
+        Response othersBooking = attemptBooking(client, 1, date, "A1");
+
+        login(client, "testuser2", "pa55word");
+        Response bookingResponse = attemptBooking(client, 1, date, "C5", "C6");
+
+        // The booking of someone else can't be cancelled
+        Response response = client.target(othersBooking.getLocation()).request().delete();
+        assertEquals(Response.Status.FORBIDDEN.getStatusCode(), response.getStatus());
+
+        // A user's own booking can, but only once
+        response = client.target(bookingResponse.getLocation()).request().delete();
+        assertEquals(Response.Status.NO_CONTENT.getStatusCode(), response.getStatus());
+
+        response = client.target(bookingResponse.getLocation()).request().delete();
+        assertEquals(Response.Status.NOT_FOUND.getStatusCode(), response.getStatus());
+
+        List<SeatDTO> bookedSeats = client.target(WEB_SERVICE_URI + "/seats/2020-02-15T20:00:00?status=Booked")
+                .request().get(new GenericType<List<SeatDTO>>() {
+                });
+        assertEquals(1, bookedSeats.size());
+
+        ConcertInfoNotificationDTO availability = client.target(WEB_SERVICE_URI + "/concerts/1/dates/2020-02-15T20:00:00/availability")
+                .request().get(ConcertInfoNotificationDTO.class);
+        assertEquals(119, availability.getNumSeatsRemaining());
+
+        // The seats can be booked again
+        login(client, "testuser", "pa55word");
+        response = attemptBooking(client, 1, date, "C5", "C6");
+        assertEquals(Response.Status.CREATED.getStatusCode(), response.getStatus());
+    }
+
+    /**
+     * Tests that retrying a booking with the same idempotency key gets the outcome of the original booking, rather
+     * than a 403 for the user's own seats.
+     */
+    @Test
+    public void testIdempotentBookingRetry() {
+        LocalDateTime date = LocalDateTime.of(2020, 2, 15, 20, 0, 0);
+        login(client, "testuser", "pa55word");
+
+        BookingRequestDTO bReq = new BookingRequestDTO(1, date, Arrays.asList("C5", "C6"));
+
+        Response first = client.target(WEB_SERVICE_URI + "/bookings").request()
+                .header("Idempotency-Key", "retry-test").post(Entity.json(bReq));
+        assertEquals(Response.Status.CREATED.getStatusCode(), first.getStatus());
+
+        Response retry = client.target(WEB_SERVICE_URI + "/bookings").request()
+                .header("Idempotency-Key", "retry-test").post(Entity.json(bReq));
+        assertEquals(Response.Status.CREATED.getStatusCode(), retry.getStatus());
+        assertEquals(first.getLocation(), retry.getLocation());
+        assertEquals("true", retry.getHeaderString("Idempotent-Replayed"));
+
+        // Only one booking was made
+        List<BookingDTO> bookings = client.target(WEB_SERVICE_URI + "/bookings").request()
+                .get(new GenericType<List<BookingDTO>>() {
+                });
+        assertEquals(1, bookings.size());
+    }
+
+    /**
+     * Tests that reusing an idempotency key for a different booking gets a 422, rather than the outcome of the
+     * booking the key was first used for.
+     */
+    @Test
+    public void testIdempotencyKeyReusedForDifferentBooking() {
+        LocalDateTime date = LocalDateTime.of(2020, 2, 15, 20, 0, 0);
+        login(client, "testuser", "pa55word");
+
+        Response first = client.target(WEB_SERVICE_URI + "/bookings").request()
+                .header("Idempotency-Key", "reused-key")
+                .post(Entity.json(new BookingRequestDTO(1, date, Arrays.asList("C5", "C6"))));
+        assertEquals(Response.Status.CREATED.getStatusCode(), first.getStatus());
+
+        Response reused = client.target(WEB_SERVICE_URI + "/bookings").request()
+                .header("Idempotency-Key", "reused-key")
+                .post(Entity.json(new BookingRequestDTO(1, date, Arrays.asList("C7", "C8"))));
+        assertEquals(422, reused.getStatus());
+
+        // Only the first booking was made
+        List<BookingDTO> bookings = client.target(WEB_SERVICE_URI + "/bookings").request()
+                .get(new GenericType<List<BookingDTO>>() {
+                });
+        assertEquals(1, bookings.size());
+    }
+
+    /**
+     * Tests that a batch of bookings is booked item by item, with a result for each booking, and that a failed
+     * booking doesn't stop the others from being made.
+     */
+    @Test
+    public void testBatchBooking() {
+        LocalDateTime date = LocalDateTime.of(2020, 2, 15, 20, 0, 0);
+        login(client, "testuser", "pa55word");
+
+        List<BookingRequestDTO> batch = Arrays.asList(
+                new BookingRequestDTO(1, date, Arrays.asList("C5", "C6")),
+                new BookingRequestDTO(1, date, Arrays.asList("C6", "C7")),
+                new BookingRequestDTO(100, date, Arrays.asList("C8")));
+
+        List<BookingResultDTO> results = client.target(WEB_SERVICE_URI + "/bookings/batch").request()
+                .post(Entity.json(batch), new GenericType<List<BookingResultDTO>>() {
+                });
+
+        assertEquals(3, results.size());
+        assertEquals(Response.Status.CREATED.getStatusCode(), results.get(0).getStatus());
+        assertNotNull(results.get(0).getLocation());
+        assertEquals(Response.Status.FORBIDDEN.getStatusCode(), results.get(1).getStatus());
+        assertEquals(Response.Status.BAD_REQUEST.getStatusCode(), results.get(2).getStatus());
+
+        List<BookingDTO> bookings = client.target(WEB_SERVICE_URI + "/bookings").request()
+                .get(new GenericType<List<BookingDTO>>() {
+                });
+        assertEquals(1, bookings.size());
+    }
+
+    /**
+     * Tests that nothing in an atomic batch of bookings is booked if any of the bookings fail.
+     */
+    @Test
+    public void testAtomicBatchBooking() {
+        LocalDateTime date = LocalDateTime.of(2020, 2, 15, 20, 0, 0);
+        login(client, "testuser", "pa55word");
+
+        List<BookingRequestDTO> batch = Arrays.asList(
+                new BookingRequestDTO(1, date, Arrays.asList("C5", "C6")),
+                new BookingRequestDTO(1, date, Arrays.asList("C6", "C7")));
+
+        List<BookingResultDTO> results = client.target(WEB_SERVICE_URI + "/bookings/batch?atomic=true").request()
+                .post(Entity.json(batch), new GenericType<List<BookingResultDTO>>() {
+                });
+
+        assertEquals(Response.Status.CONFLICT.getStatusCode(), results.get(0).getStatus());
+        assertEquals(Response.Status.FORBIDDEN.getStatusCode(), results.get(1).getStatus());
+
+        // The seats of the first booking are still free
+        Response response = attemptBooking(client, 1, date, "C5", "C6");
+        assertEquals(Response.Status.CREATED.getStatusCode(), response.getStatus());
+    }
+
+    /**
+     * Tests that the best available seats are booked together in the middle of the front row of the price band, and
+     * that a 403 is returned once there isn't a big enough block of seats left.
+     */
+    @Test
+    public void testAutoBooking() {
+        LocalDateTime date = LocalDateTime.of(2020, 2, 15, 20, 0, 0);
+        login(client, "testuser", "pa55word");
+
+        Response response = client.target(WEB_SERVICE_URI + "/bookings/auto").request()
+                .post(Entity.json(new AutoBookingRequestDTO(1, date, 4, "Gold Seating")));
+        assertEquals(Response.Status.CREATED.getStatusCode(), response.getStatus());
+
+        BookingDTO booking = client.target(response.getLocation()).request().get(BookingDTO.class);
+        List<String> labels = booking.getSeats().stream().map(SeatDTO::getLabel).sorted().collect(Collectors.toList());
+        assertEquals(Arrays.asList("F5", "F6", "F7", "F8"), labels);
+
+        // There are two rows of silver seating, so only two whole rows can be booked
+        for (int i = 0; i < 2; i++) {
+            response = client.target(WEB_SERVICE_URI + "/bookings/auto").request()
+                    .post(Entity.json(new AutoBookingRequestDTO(1, date, 12, "Silver Seating")));
+            assertEquals(Response.Status.CREATED.getStatusCode(), response.getStatus());
+        }
+
+        response = client.target(WEB_SERVICE_URI + "/bookings/auto").request()
+                .post(Entity.json(new AutoBookingRequestDTO(1, date, 1, "Silver Seating")));
+        assertEquals(Response.Status.FORBIDDEN.getStatusCode(), response.getStatus());
+    }
+
+    // Tests for seat holds
+    // --------------------------------------------------------------------
+
+    /**
+     * Tests that held seats can't be booked by anyone else, and that the hold can be confirmed into a booking by the
+     * user who made it.
+     */
+    @Test
+    public void testHoldAndConfirm() {
+        LocalDateTime date = LocalDateTime.of(2020, 2, 15, 20, 0, 0);
+
+        // Log in and hold some seats
+        login(client, "testuser", "pa55word");
+        Response response = client.target(WEB_SERVICE_URI + "/holds?seconds=60").request()
+                .post(Entity.json(new BookingRequestDTO(1, date, Arrays.asList("C5", "C6"))));
+        assertEquals(Response.Status.CREATED.getStatusCode(), response.getStatus());
+        SeatHoldDTO hold = response.readEntity(SeatHoldDTO.class);
+        assertEquals(Arrays.asList("C5", "C6"), hold.getSeatLabels());
+
+        Client user2Client = ClientBuilder.newClient();
+        try {
+            // User 2 can't book the held seats, or confirm someone else's hold
+            login(user2Client, "testuser2", "pa55word");
+            response = attemptBooking(user2Client, 1, date, "C6", "C7");
+            assertEquals(Response.Status.FORBIDDEN.getStatusCode(), response.getStatus());
+
+            response = user2Client.target(WEB_SERVICE_URI + "/holds/" + hold.getId() + "/confirm").request().post(null);
+            assertEquals(Response.Status.FORBIDDEN.getStatusCode(), response.getStatus());
+        } finally {
+            user2Client.close();
+        }
+
+        // User 1 confirms the hold, which books the seats
+        response = client.target(WEB_SERVICE_URI + "/holds/" + hold.getId() + "/confirm").request().post(null);
+        assertEquals(Response.Status.CREATED.getStatusCode(), response.getStatus());
+
+        BookingDTO booking = client.target(response.getLocation()).request().get(BookingDTO.class);
+        assertEquals(2, booking.getSeats().size());
+
+        // The hold is used up
+        response = client.target(WEB_SERVICE_URI + "/holds/" + hold.getId() + "/confirm").request().post(null);
+        assertEquals(Response.Status.NOT_FOUND.getStatusCode(), response.getStatus());
+    }
+
+    /**
+     * Tests that the seats of a hold which isn't confirmed are given back once it expires.
+     */
+    @Test
+    public void testHoldExpires() throws InterruptedException {
+        LocalDateTime date = LocalDateTime.of(2020, 2, 15, 20, 0, 0);
+
+        login(client, "testuser", "pa55word");
+        Response response = client.target(WEB_SERVICE_URI + "/holds?seconds=1").request()
+                .post(Entity.json(new BookingRequestDTO(1, date, Arrays.asList("C5", "C6"))));
+        assertEquals(Response.Status.CREATED.getStatusCode(), response.getStatus());
+        SeatHoldDTO hold = response.readEntity(SeatHoldDTO.class);
+
+        Thread.sleep(1500);
+
+        // The hold can't be confirmed, but the seats can be booked again
+        response = client.target(WEB_SERVICE_URI + "/holds/" + hold.getId() + "/confirm").request().post(null);
+        assertEquals(Response.Status.NOT_FOUND.getStatusCode(), response.getStatus());
+
+        response = attemptBooking(client, 1, date, "C5", "C6");
+        assertEquals(Response.Status.CREATED.getStatusCode(), response.getStatus());
+    }
+
+    /**
+     * Tests that joining the waiting room for a date in high demand hands out a ticket and a cookie, that the ticket's
+     * place can be looked up, and that dates which aren't in high demand let everyone through without a ticket.
+     */
+    @Test
+    public void testJoinWaitingRoom() {
+        Response response = client.target(WEB_SERVICE_URI + "/waitingroom/2020-02-15T20:00:00").request().post(null);
+        assertEquals(Response.Status.OK.getStatusCode(), response.getStatus());
+        QueueTicketDTO open = response.readEntity(QueueTicketDTO.class);
+        assertNull(open.getToken());
+        assertTrue(open.isAdmitted());
+
+        response = client.target(WEB_SERVICE_URI + HOT_DATE_PATH).request().post(null);
+        assertEquals(Response.Status.OK.getStatusCode(), response.getStatus());
+        QueueTicketDTO ticket = response.readEntity(QueueTicketDTO.class);
+        assertNotNull(ticket.getToken());
+        assertEquals(ticket.getToken(), response.getCookies().get("admission").getValue());
+
+        // The first in line is let through straight away
+        assertEquals(0, ticket.getPosition());
+        assertTrue(ticket.isAdmitted());
+
+        QueueTicketDTO place = place(ticket.getToken());
+        assertEquals(ticket.getToken(), place.getToken());
+        assertTrue(place.isAdmitted());
+
+        // Someone who never joined has no place
+        Client stranger = ClientBuilder.newClient();
+        try {
+            response = stranger.target(WEB_SERVICE_URI + HOT_DATE_PATH).request().cookie("admission", "nonsense").get();
+            assertEquals(Response.Status.NOT_FOUND.getStatusCode(), response.getStatus());
+        } finally {
+            stranger.close();
+        }
+    }
+
+    /**
+     * Tests that booking a date in high demand without having been let through the waiting room gets a 429, and
+     * that the booking can be made once the user has been let through.
+     */
+    @Test
+    public void testBookingHotDateNeedsAdmission() {
+        login(client, "testuser", "pa55word");
+
+        Response response = attemptBooking(client, HOT_CONCERT_ID, HOT_DATE, "C5", "C6");
+        assertEquals(Response.Status.TOO_MANY_REQUESTS.getStatusCode(), response.getStatus());
+
+        // Joining sets the admission cookie, which the client sends with the booking
+        QueueTicketDTO ticket = client.target(WEB_SERVICE_URI + HOT_DATE_PATH).request().post(null, QueueTicketDTO.class);
+        assertTrue(ticket.isAdmitted());
+
+        response = attemptBooking(client, HOT_CONCERT_ID, HOT_DATE, "C5", "C6");
+        assertEquals(Response.Status.CREATED.getStatusCode(), response.getStatus());
+    }
+
+    /**
+     * Tests that the waiting room lets a burst of people through straight away, and then the rest through in the
+     * order they joined at a steady rate.
+     */
+    @Test
+    public void testWaitingRoomAdmitsAtSteadyRate() throws InterruptedException {
+        List<QueueTicketDTO> tickets = new ArrayList<>();
+        for (int i = 0; i < WAITING_ROOM_BURST + 2; i++) {
+            tickets.add(client.target(WEB_SERVICE_URI + HOT_DATE_PATH).request().post(null, QueueTicketDTO.class));
+        }
+
+        for (int i = 0; i < WAITING_ROOM_BURST; i++) {
+            assertTrue(tickets.get(i).isAdmitted());
+        }
+        assertEquals(1, tickets.get(WAITING_ROOM_BURST).getPosition());
+        assertEquals(2, tickets.get(WAITING_ROOM_BURST + 1).getPosition());
+
+        // Asking about both tickets keeps them from expiring while they wait
+        QueueTicketDTO third = null;
+        QueueTicketDTO fourth = null;
+        long deadline = System.currentTimeMillis() + 10000;
+        while (System.currentTimeMillis() < deadline) {
+            third = place(tickets.get(WAITING_ROOM_BURST).getToken());
+            fourth = place(tickets.get(WAITING_ROOM_BURST + 1).getToken());
+
+            // The fourth is never let through before the third
+            assertFalse(fourth.isAdmitted() && !third.isAdmitted());
+
+            if (fourth.isAdmitted()) {
+                break;
+            }
+            Thread.sleep(100);
+        }
+
+        assertTrue(third.isAdmitted());
+        assertTrue(fourth.isAdmitted());
+    }
+
+    /**
+     * Tests that once the waiting room is full, joining it gets a 503, until the tickets whose holders stopped asking
+     * about them expire and free their places.
+     */
+    @Test
+    public void testAbandonedTicketsExpire() throws InterruptedException {
+        for (int i = 0; i < WAITING_ROOM_MAX_TICKETS; i++) {
+            Response response = client.target(WEB_SERVICE_URI + HOT_DATE_PATH).request().post(null);
+            assertEquals(Response.Status.OK.getStatusCode(), response.getStatus());
+            response.close();
+        }
+
+        Response response = client.target(WEB_SERVICE_URI + HOT_DATE_PATH).request().post(null);
+        assertEquals(Response.Status.SERVICE_UNAVAILABLE.getStatusCode(), response.getStatus());
+        response.close();
+
+        // Nobody asks about the tickets which are still waiting, so they expire
+        Thread.sleep(TimeUnit.SECONDS.toMillis(WAITING_ROOM_IDLE_SECONDS) + 1000);
+
+        response = client.target(WEB_SERVICE_URI + HOT_DATE_PATH).request().post(null);
+        assertEquals(Response.Status.OK.getStatusCode(), response.getStatus());
+        response.close();
+    }
+
     // Tests for publish / subscribe functions - uncomment when ready.
     // --------------------------------------------------------------------
 
@@ -803,6 +1366,184 @@ public class ConcertResourceIT {
 
     }
 
+    /**
+     * Tests that notifications are sent by the dispatcher, and show up in its metrics.
+     */
+    @Test
+    public void testNotificationMetrics() throws ExecutionException, InterruptedException, TimeoutException {
+
+        login(client, "testuser", "pa55word");
+
+        LocalDateTime date = LocalDateTime.of(2020, 2, 15, 20, 0, 0);
+        ConcertInfoSubscriptionDTO subInfo = new ConcertInfoSubscriptionDTO(1, date, 1);
+        Future<ConcertInfoNotificationDTO> future = client.target(WEB_SERVICE_URI + "/subscribe/concertInfo")
+                .request().async().post(Entity.json(subInfo), ConcertInfoNotificationDTO.class);
+
+        Client user2Client = ClientBuilder.newClient();
+        try {
+            // Give the subscription a moment to arrive before booking
+            Thread.sleep(500);
+
+            login(user2Client, "testuser2", "pa55word");
+            attemptBooking(user2Client, 1, date, 'A', 'A');
+
+            assertEquals(108, future.get(2, TimeUnit.SECONDS).getNumSeatsRemaining());
+
+            Map<String, Object> metrics = client.target("http://localhost:10000/services/concert-service-metrics")
+                    .request().get(new GenericType<Map<String, Object>>() {
+                    });
+            assertTrue(((Number) metrics.get("notifications.sent")).longValue() >= 1);
+            assertTrue(metrics.containsKey("notifications.queueDepth"));
+            assertTrue(metrics.containsKey("notifications.dispatchLatency"));
+
+            // subscribers are never checked more often than the seats change
+            long changes = ((Number) metrics.get("notifications.changes")).longValue();
+            long checks = ((Number) metrics.get("notifications.checks")).longValue();
+            assertTrue(checks >= 1 && checks <= changes);
+
+        } finally {
+            user2Client.close();
+        }
+    }
+
+    /**
+     * Tests that a user can't have more than ten subscriptions waiting at once, and that the subscriptions show up in
+     * the live subscription gauge.
+     */
+    @Test
+    public void testTooManySubscriptions() throws InterruptedException {
+
+        login(client, "testuser", "pa55word");
+
+        LocalDateTime date = LocalDateTime.of(2020, 2, 15, 20, 0, 0);
+        ConcertInfoSubscriptionDTO subInfo = new ConcertInfoSubscriptionDTO(1, date, 100);
+
+        for (int i = 0; i < 10; i++) {
+            client.target(WEB_SERVICE_URI + "/subscribe/concertInfo")
+                    .request().async().post(Entity.json(subInfo), ConcertInfoNotificationDTO.class);
+        }
+
+        // Give the subscriptions a moment to arrive
+        Thread.sleep(500);
+
+        Map<String, Object> metrics = client.target("http://localhost:10000/services/concert-service-metrics")
+                .request().get(new GenericType<Map<String, Object>>() {
+                });
+        assertTrue(((Number) metrics.get("subscriptions.live")).intValue() >= 10);
+
+        Response response = client.target(WEB_SERVICE_URI + "/subscribe/concertInfo")
+                .request().post(Entity.json(subInfo));
+        assertEquals(Response.Status.TOO_MANY_REQUESTS.getStatusCode(), response.getStatus());
+    }
+
+    /**
+     * Tests that a user can come back to a subscription by subscribing again with the same id, which replaces the
+     * subscription they had, and that the id is sent back with the notification.
+     */
+    @Test
+    public void testSubscriptionComeBack() throws ExecutionException, InterruptedException, TimeoutException {
+
+        login(client, "testuser", "pa55word");
+
+        LocalDateTime date = LocalDateTime.of(2020, 2, 15, 20, 0, 0);
+        ConcertInfoSubscriptionDTO subInfo = new ConcertInfoSubscriptionDTO(1, date, 50);
+
+        Future<Response> first = client.target(WEB_SERVICE_URI + "/subscribe/concertInfo")
+                .request().header("Subscription-Id", "sub-1").async().post(Entity.json(subInfo));
+
+        // Give the first subscription a moment to arrive
+        Thread.sleep(500);
+
+        Future<Response> second = client.target(WEB_SERVICE_URI + "/subscribe/concertInfo")
+                .request().header("Subscription-Id", "sub-1").async().post(Entity.json(subInfo));
+
+        // The first subscription has been replaced
+        assertEquals(Response.Status.CONFLICT.getStatusCode(), first.get(2, TimeUnit.SECONDS).getStatus());
+
+        Client user2Client = ClientBuilder.newClient();
+        try {
+            login(user2Client, "testuser2", "pa55word");
+            attemptBooking(user2Client, 1, date, 'A', 'G');
+
+            Response response = second.get(2, TimeUnit.SECONDS);
+            assertEquals(Response.Status.OK.getStatusCode(), response.getStatus());
+            assertEquals("sub-1", response.getHeaderString("Subscription-Id"));
+            assertEquals(36, response.readEntity(ConcertInfoNotificationDTO.class).getNumSeatsRemaining());
+
+        } finally {
+            user2Client.close();
+        }
+    }
+
+    /**
+     * Tests that an auth cookie which didn't come from logging in, or has been tampered with, is rejected with a 401,
+     * that the cookie works from anywhere, and that a user's bookings still belong to them after they log in again.
+     */
+    @Test
+    public void testSessions() {
+
+        Response response = client.target(WEB_SERVICE_URI + "/bookings").request()
+                .cookie("auth", UUID.randomUUID().toString()).get();
+        assertEquals(Response.Status.UNAUTHORIZED.getStatusCode(), response.getStatus());
+
+        String token = login(client, "testuser", "pa55word").getCookies().get("auth").getValue();
+        LocalDateTime date = LocalDateTime.of(2020, 2, 15, 20, 0, 0);
+        assertEquals(Response.Status.CREATED.getStatusCode(), attemptBooking(client, 1, date, "A1").getStatus());
+
+        Client otherClient = ClientBuilder.newClient();
+        try {
+            // The signature no longer matches
+            int at = token.length() - 5;
+            String tampered = token.substring(0, at) + (token.charAt(at) == 'A' ? 'B' : 'A') + token.substring(at + 1);
+            response = otherClient.target(WEB_SERVICE_URI + "/bookings").request().cookie("auth", tampered).get();
+            assertEquals(Response.Status.UNAUTHORIZED.getStatusCode(), response.getStatus());
+
+            // The token is all that's needed, on any client
+            List<BookingDTO> bookings = otherClient.target(WEB_SERVICE_URI + "/bookings").request().cookie("auth", token)
+                    .get(new GenericType<List<BookingDTO>>() {
+                    });
+            assertEquals(1, bookings.size());
+        } finally {
+            otherClient.close();
+        }
+
+        // A new session for the same user
+        login(client, "testuser", "pa55word");
+        List<BookingDTO> bookings = client.target(WEB_SERVICE_URI + "/bookings").request()
+                .get(new GenericType<List<BookingDTO>>() {
+                });
+        assertEquals(1, bookings.size());
+    }
+
+    /**
+     * Tests that the connection pool reports how long requests wait for a connection, and how many connections it has,
+     * and that it doesn't make more connections than it is allowed.
+     */
+    @Test
+    public void testConnectionPoolMetrics() {
+
+        login(client, "testuser", "pa55word");
+        for (int i = 0; i < 5; i++) {
+            client.target(WEB_SERVICE_URI + "/bookings").request().get(new GenericType<List<BookingDTO>>() {
+            });
+        }
+
+        Map<String, Object> metrics = client.target("http://localhost:10000/services/concert-service-metrics")
+                .request().get(new GenericType<Map<String, Object>>() {
+                });
+
+        @SuppressWarnings("unchecked")
+        Map<String, Object> wait = (Map<String, Object>) metrics.get("db.pool.wait");
+        assertTrue(((Number) wait.get("count")).longValue() >= 6);
+
+        long total = ((Number) metrics.get("db.pool.total")).longValue();
+        assertTrue(total >= 1 && total <= 10);
+        assertTrue(((Number) metrics.get("db.pool.active")).longValue() <= total);
+        assertTrue(metrics.containsKey("db.pool.idle"));
+        assertTrue(metrics.containsKey("db.pool.waiting"));
+        assertEquals(0, ((Number) metrics.get("db.pool.timeouts")).longValue());
+    }
+
     // Helper methods
     // --------------------------------------------------------------------
 
@@ -815,6 +1556,20 @@ public class ConcertResourceIT {
                 .request().post(Entity.json(creds));
     }
 
+    /**
+     * Helper method - looks up the place of a ticket in the waiting room for the hot date. A client of its own is
+     * used, so that the admission cookie of whichever ticket was joined last isn't sent as well.
+     */
+    private static QueueTicketDTO place(String token) {
+        Client holder = ClientBuilder.newClient();
+        try {
+            return holder.target(WEB_SERVICE_URI + HOT_DATE_PATH).request()
+                    .cookie("admission", token).get(QueueTicketDTO.class);
+        } finally {
+            holder.close();
+        }
+    }
+
     /**
      * Helper method - tries to book entire rows.
      */
@@ -0,0 +1,377 @@
+package se325.assignment01.concert.service;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import se325.assignment01.concert.common.dto.ConcertInfoSubscriptionDTO;
+import se325.assignment01.concert.service.domain.SubscriptionInfo;
+import se325.assignment01.concert.service.services.SubscriptionLog;
+import se325.assignment01.concert.service.services.SubscriptionRegistry;
+import se325.assignment01.concert.service.util.Config;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.CompletionCallback;
+import javax.ws.rs.container.TimeoutHandler;
+import javax.ws.rs.core.Response;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests that the {@link SubscriptionRegistry} hands back exactly the subscriptions whose percentage has been reached,
+ * for the right concert date, that each subscription is handed back once even when subscribing and booking happen at
+ * the same time, and that subscriptions whose subscriber has gone, or which have timed out, are cleared away.
+ */
+public class SubscriptionRegistryTest {
+
+    private static final long CONCERT_ID = 1;
+    private static final LocalDateTime DATE = LocalDateTime.of(2020, 2, 15, 20, 0, 0);
+    private static final LocalDateTime OTHER_DATE = LocalDateTime.of(2020, 2, 16, 20, 0, 0);
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private SubscriptionRegistry registry;
+    private final AtomicInteger owners = new AtomicInteger();
+
+    @Before
+    public void setUp() {
+        // each registry has a log of its own, so the service's log is never replayed or rewritten by the tests
+        SubscriptionLog log = new SubscriptionLog(folder.getRoot().toPath().resolve("subscriptions.log")) {
+        };
+        registry = new SubscriptionRegistry(log) {
+        };
+    }
+
+    @After
+    public void tearDown() {
+        registry.shutdown();
+    }
+
+    /**
+     * Tests that only the subscriptions to the date whose percentage is at or below the percentage booked are
+     * reached, and that they are only reached once.
+     */
+    @Test
+    public void testReachedAtMixedPercentages() {
+        int[] percentages = {90, 10, 50, 30, 70, 50, 20};
+
+        Map<Integer, List<SubscriptionInfo>> byPercentage = new TreeMap<>();
+        List<SubscriptionInfo> other = new ArrayList<>();
+
+        for (int percentage : percentages) {
+            byPercentage.computeIfAbsent(percentage, p -> new ArrayList<>()).add(subscribe(DATE, percentage));
+            other.add(subscribe(OTHER_DATE, percentage));
+        }
+        assertEquals(percentages.length * 2, registry.size());
+
+        // 10, 20, 30 and both 50s
+        assertSameSubscriptions(subscriptionsUpTo(byPercentage, 50), registry.reached(CONCERT_ID, DATE, 50, 60));
+        assertEquals(percentages.length * 2 - 5, registry.size());
+
+        // the same percentage again reaches nobody new
+        assertEquals(0, registry.reached(CONCERT_ID, DATE, 50, 60).size());
+
+        // nothing was reached for another concert with the same date
+        assertEquals(0, registry.reached(CONCERT_ID + 1, DATE, 100, 0).size());
+
+        assertSameSubscriptions(byPercentage.get(70), registry.reached(CONCERT_ID, DATE, 89, 13));
+        assertSameSubscriptions(byPercentage.get(90), registry.reached(CONCERT_ID, DATE, 100, 0));
+
+        // the other date still has all of its subscriptions
+        assertEquals(percentages.length, registry.size());
+        assertSameSubscriptions(other, registry.reached(CONCERT_ID, OTHER_DATE, 100, 0));
+        assertEquals(0, registry.size());
+    }
+
+    /**
+     * Tests that while subscriptions are being added to two dates and their percentages are being reached at the
+     * same time, every subscription is reached exactly once, for the date it was made for.
+     */
+    @Test
+    public void testConcurrentAddAndReached() throws InterruptedException {
+        int numAdders = 4;
+        int perAdder = 500;
+
+        List<SubscriptionInfo> added = new CopyOnWriteArrayList<>();
+        ConcurrentLinkedQueue<SubscriptionInfo> reached = new ConcurrentLinkedQueue<>();
+        ConcurrentLinkedQueue<SubscriptionInfo> reachedForWrongDate = new ConcurrentLinkedQueue<>();
+        AtomicBoolean adding = new AtomicBoolean(true);
+        CountDownLatch start = new CountDownLatch(1);
+
+        ExecutorService threads = Executors.newFixedThreadPool(numAdders + 2);
+        List<Future<?>> adders = new ArrayList<>();
+
+        for (int i = 0; i < numAdders; i++) {
+            long seed = i;
+            adders.add(threads.submit(() -> {
+                Random random = new Random(seed);
+                start.await();
+                for (int n = 0; n < perAdder; n++) {
+                    LocalDateTime date = random.nextBoolean() ? DATE : OTHER_DATE;
+                    added.add(subscribe(date, 1 + random.nextInt(100)));
+                }
+                return null;
+            }));
+        }
+
+        for (LocalDateTime date : new LocalDateTime[]{DATE, OTHER_DATE}) {
+            threads.submit(() -> {
+                Random random = new Random(date.getDayOfMonth());
+                start.await();
+                while (adding.get()) {
+                    for (SubscriptionInfo s : registry.reached(CONCERT_ID, date, random.nextInt(101), 0)) {
+                        (s.getSubInfo().getDate().equals(date) ? reached : reachedForWrongDate).add(s);
+                    }
+                }
+                return null;
+            });
+        }
+
+        start.countDown();
+        for (Future<?> adder : adders) {
+            try {
+                adder.get(30, TimeUnit.SECONDS);
+            } catch (ExecutionException | TimeoutException e) {
+                throw new AssertionError(e);
+            }
+        }
+        adding.set(false);
+        threads.shutdown();
+        assertTrue(threads.awaitTermination(30, TimeUnit.SECONDS));
+
+        // whatever is left is reached once every seat is booked
+        reached.addAll(registry.reached(CONCERT_ID, DATE, 100, 0));
+        reached.addAll(registry.reached(CONCERT_ID, OTHER_DATE, 100, 0));
+
+        assertEquals(0, reachedForWrongDate.size());
+        assertEquals(numAdders * perAdder, added.size());
+        assertEquals(added.size(), reached.size());
+        assertSameSubscriptions(added, new ArrayList<>(reached));
+        assertEquals(0, registry.size());
+    }
+
+    /**
+     * Tests that when a subscriber goes away, which the container doesn't call back about, their subscription is
+     * swept up and no longer counts against them.
+     */
+    @Test
+    public void testAbortedSubscriberFreesSlot() throws InterruptedException {
+        List<SubscriptionInfo> subscriptions = new ArrayList<>();
+        for (int i = 0; i < Config.SUBSCRIPTIONS_PER_USER; i++) {
+            subscriptions.add(subscribe(DATE, 50, "dropper"));
+        }
+
+        try {
+            subscribe(DATE, 50, "dropper");
+            fail("The user should have had too many subscriptions");
+        } catch (WebApplicationException e) {
+            assertEquals(Response.Status.TOO_MANY_REQUESTS.getStatusCode(), e.getResponse().getStatus());
+        }
+
+        ((FakeAsyncResponse) subscriptions.get(0).getAsyncResponse()).abort();
+
+        long deadline = System.currentTimeMillis() + Config.SUBSCRIPTION_SWEEP_MILLIS * 5;
+        while (registry.size() == Config.SUBSCRIPTIONS_PER_USER && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertEquals(Config.SUBSCRIPTIONS_PER_USER - 1, registry.size());
+
+        // the user can subscribe again, and the aborted subscription is never reached
+        SubscriptionInfo replacement = subscribe(DATE, 50, "dropper");
+        subscriptions.set(0, replacement);
+        assertSameSubscriptions(subscriptions, registry.reached(CONCERT_ID, DATE, 50, 60));
+    }
+
+    /**
+     * Tests that subscriptions which timed out while the service was stopped aren't read back from the log, so the
+     * log doesn't keep subscriptions which nobody came back to.
+     */
+    @Test
+    public void testReplayDropsTimedOutSubscriptions() {
+        Path path = folder.getRoot().toPath().resolve("replayed.log");
+        long timedOut = System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(Config.SUBSCRIPTION_TIMEOUT_SECONDS) - 1000;
+
+        SubscriptionLog before = new SubscriptionLog(path) {
+        };
+        before.replay();
+        before.registered(new SubscriptionLog.Record("owner/old", CONCERT_ID, DATE, 50, timedOut, null));
+        before.registered(new SubscriptionLog.Record("owner/new", CONCERT_ID, DATE, 50, System.currentTimeMillis(), null));
+
+        SubscriptionLog after = new SubscriptionLog(path) {
+        };
+        assertEquals(Collections.singleton("owner/new"), after.replay().keySet());
+    }
+
+    private SubscriptionInfo subscribe(LocalDateTime date, int percentage) {
+        // every subscription has its own owner, so that none of them are turned away for having too many
+        return subscribe(date, percentage, "owner-" + owners.incrementAndGet());
+    }
+
+    private SubscriptionInfo subscribe(LocalDateTime date, int percentage, String owner) {
+        SubscriptionInfo subscription = new SubscriptionInfo(new FakeAsyncResponse(),
+                new ConcertInfoSubscriptionDTO(CONCERT_ID, date, percentage), owner, null);
+        registry.add(CONCERT_ID, date, subscription);
+        return subscription;
+    }
+
+    private static List<SubscriptionInfo> subscriptionsUpTo(Map<Integer, List<SubscriptionInfo>> byPercentage, int percentage) {
+        List<SubscriptionInfo> subscriptions = new ArrayList<>();
+        byPercentage.forEach((p, s) -> {
+            if (p <= percentage) {
+                subscriptions.addAll(s);
+            }
+        });
+        return subscriptions;
+    }
+
+    /**
+     * checks that the two lists hold the same subscriptions, with none of them twice.
+     */
+    private static void assertSameSubscriptions(List<SubscriptionInfo> expected, List<SubscriptionInfo> actual) {
+        Set<SubscriptionInfo> actualSet = Collections.newSetFromMap(new IdentityHashMap<>());
+        actualSet.addAll(actual);
+        assertEquals("a subscription was reached twice", actual.size(), actualSet.size());
+
+        Set<SubscriptionInfo> expectedSet = Collections.newSetFromMap(new IdentityHashMap<>());
+        expectedSet.addAll(expected);
+        assertEquals(expectedSet, actualSet);
+    }
+
+    /**
+     * Stands in for the response to a subscriber, which is suspended until it is resumed or cancelled.
+     */
+    private static class FakeAsyncResponse implements AsyncResponse {
+
+        private final List<CompletionCallback> completionCallbacks = new CopyOnWriteArrayList<>();
+        private volatile boolean done = false;
+        private volatile boolean cancelled = false;
+
+        @Override
+        public synchronized boolean resume(Object response) {
+            return finish(null);
+        }
+
+        @Override
+        public synchronized boolean resume(Throwable response) {
+            return finish(response);
+        }
+
+        @Override
+        public synchronized boolean cancel() {
+            cancelled = true;
+            return finish(null);
+        }
+
+        @Override
+        public boolean cancel(int retryAfter) {
+            return cancel();
+        }
+
+        @Override
+        public boolean cancel(Date retryAfter) {
+            return cancel();
+        }
+
+        @Override
+        public boolean isSuspended() {
+            return !done;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        @Override
+        public boolean isDone() {
+            return done;
+        }
+
+        @Override
+        public boolean setTimeout(long time, TimeUnit unit) {
+            return !done;
+        }
+
+        @Override
+        public void setTimeoutHandler(TimeoutHandler handler) {
+        }
+
+        @Override
+        public Collection<Class<?>> register(Class<?> callback) {
+            return Collections.emptySet();
+        }
+
+        @Override
+        public Map<Class<?>, Collection<Class<?>>> register(Class<?> callback, Class<?>... callbacks) {
+            return Collections.emptyMap();
+        }
+
+        // like RESTEasy, only completion callbacks are taken
+        @Override
+        public Collection<Class<?>> register(Object callback) {
+            Set<Class<?>> registered = new HashSet<>();
+            if (callback instanceof CompletionCallback) {
+                completionCallbacks.add((CompletionCallback) callback);
+                registered.add(CompletionCallback.class);
+            }
+            return registered;
+        }
+
+        @Override
+        public Map<Class<?>, Collection<Class<?>>> register(Object callback, Object... callbacks) {
+            register(callback);
+            for (Object c : callbacks) {
+                register(c);
+            }
+            return Collections.emptyMap();
+        }
+
+        /**
+         * the subscriber goes away. Like RESTEasy, the response is marked as cancelled without calling anything back.
+         */
+        private synchronized void abort() {
+            cancelled = true;
+            done = true;
+        }
+
+        private boolean finish(Throwable failure) {
+            if (done) {
+                return false;
+            }
+            done = true;
+            for (CompletionCallback callback : completionCallbacks) {
+                callback.onComplete(failure);
+            }
+            return true;
+        }
+    }
+}
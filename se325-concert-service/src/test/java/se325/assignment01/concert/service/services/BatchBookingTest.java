@@ -0,0 +1,114 @@
+package se325.assignment01.concert.service.services;
+
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.Test;
+import org.hibernate.Session;
+import se325.assignment01.concert.common.dto.BookingRequestDTO;
+import se325.assignment01.concert.service.domain.Booking;
+import se325.assignment01.concert.service.domain.User;
+import se325.assignment01.concert.service.util.ConcertUtils;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceException;
+import javax.transaction.Synchronization;
+import javax.ws.rs.core.Cookie;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests that a batch of bookings which fails to commit gives back the seats it claimed in the {@link SeatInventory}.
+ * The resource is called directly, so that the commit can be made to fail.
+ */
+public class BatchBookingTest {
+
+    private static final long CONCERT_ID = 1;
+    private static final LocalDateTime DATE = LocalDateTime.of(2020, 2, 15, 20, 0, 0);
+
+    @Before
+    public void setUp() {
+        PersistenceManager.instance().reset();
+        ConcertUtils.initConcerts();
+        SeatInventory.instance().clear();
+    }
+
+    @AfterClass
+    public static void tearDown() {
+        PersistenceManager.instance().reset();
+        SeatInventory.instance().clear();
+    }
+
+    /**
+     * Tests that when the commit of a batch fails, e.g. on a version conflict, none of its seats are left claimed and
+     * none of them are booked.
+     */
+    @Test
+    public void testSeatsReleasedWhenCommitFails() {
+        PersistenceManager persistenceManager = PersistenceManager.instance();
+
+        ConcertResource resource = new ConcertResource();
+        resource.bookingWriter = new BookingWriter(persistenceManager, BookingWriter.Mode.PESSIMISTIC, 3) {
+            @Override
+            public List<Booking> bookSeatsOnDate(EntityManager em, LocalDateTime date, List<BookingRequestDTO> requests, String uuid) {
+                List<Booking> booked = super.bookSeatsOnDate(em, date, requests, uuid);
+
+                // the commit which follows fails, as it would on a version conflict
+                em.unwrap(Session.class).getTransaction().registerSynchronization(new Synchronization() {
+                    @Override
+                    public void beforeCompletion() {
+                        throw new PersistenceException("Injected failure");
+                    }
+
+                    @Override
+                    public void afterCompletion(int status) {
+                    }
+                });
+                return booked;
+            }
+        };
+
+        List<BookingRequestDTO> requests = Arrays.asList(
+                new BookingRequestDTO(CONCERT_ID, DATE, Arrays.asList("A1", "A2")),
+                new BookingRequestDTO(CONCERT_ID, DATE, Arrays.asList("B1")));
+
+        Object request = persistenceManager.beginRequest(false);
+        try {
+            resource.attemptBookings(requests, false, login(), null, null);
+            fail("The batch should have failed to commit");
+        } catch (PersistenceException e) {
+            // expected
+        } finally {
+            persistenceManager.endRequest(request);
+        }
+
+        // every seat can be claimed again
+        SeatInventory.Claim claim = SeatInventory.instance().claim(CONCERT_ID, DATE, Arrays.asList("A1", "A2", "B1"));
+        assertNotNull(claim);
+        claim.release();
+
+        EntityManager em = persistenceManager.createEntityManager();
+        try {
+            long bookedSeats = em.createQuery("select count(s) from Seat s where s.date = :date and s.isBooked = true", Long.class)
+                    .setParameter("date", DATE)
+                    .getSingleResult();
+            assertEquals(0, bookedSeats);
+        } finally {
+            em.close();
+        }
+    }
+
+    private static Cookie login() {
+        EntityManager em = PersistenceManager.instance().createEntityManager();
+        try {
+            User user = em.find(User.class, 1L);
+            return new Cookie("auth", SessionTokens.instance().issue(user));
+        } finally {
+            em.close();
+        }
+    }
+}